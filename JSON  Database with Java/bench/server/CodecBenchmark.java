@@ -0,0 +1,89 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+//decoding a writeUTF request frame and encoding its response: gson's reflective binding (the old path) versus
+//JsonCodec. reports time and bytes allocated per request, the value is a record with `fields` fields
+//
+//  java -cp <classes>:gson.jar server.CodecBenchmark [fields] [seconds per round]
+public class CodecBenchmark {
+
+    private static final Gson gson = new Gson();
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Path {
+        int roundTrip(byte[] frame) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int fields = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+
+        JsonObject value = new JsonObject();
+        for (int i = 0; i < fields; i++) {
+            if (i % 2 == 0) {
+                value.addProperty("field" + i, "some text " + i);
+            } else {
+                value.addProperty("field" + i, i * 1.5);
+            }
+        }
+        String request = "{\"type\":\"set\",\"key\":[\"users\",\"u42\"],\"value\":" + value + ",\"id\":7}";
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        new DataOutputStream(framed).writeUTF(request);
+        byte[] frame = framed.toByteArray();
+        SendResponse response = new SendResponse("OK", JsonParser.parseString(value.toString()), null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Path reflective = bytes -> {
+            ReceivedRequest received = gson.fromJson(new DataInputStream(new ByteArrayInputStream(bytes)).readUTF(),
+                    ReceivedRequest.class);
+            out.reset();
+            new DataOutputStream(out).writeUTF(gson.toJson(response.withId(received.getId())));
+            return out.size();
+        };
+        JsonCodec codec = new JsonCodec();
+        Path streaming = bytes -> {
+            ReceivedRequest received = codec.readUtf(bytes, 2, bytes.length - 2);
+            codec.writeUtfFrame(response.withId(received.getId()));
+            return codec.frameLength();
+        };
+        if (reflective.roundTrip(frame) != streaming.roundTrip(frame)) {
+            throw new IllegalStateException("The two paths encode different responses");
+        }
+
+        System.out.printf("request %d bytes, response %d bytes%n", frame.length, codec.frameLength());
+        for (int round = 0; round < 5; round++) { //the first rounds are warm-up
+            measure("gson   ", reflective, frame, seconds);
+            measure("codec  ", streaming, frame, seconds);
+        }
+    }
+
+    private static void measure(String name, Path path, byte[] frame, double seconds) throws IOException {
+        long thread = Thread.currentThread().getId();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long operations = 0;
+        long sink = 0;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1000; i++) {
+                sink += path.roundTrip(frame);
+            }
+            operations += 1000;
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("%s %6.0f ns/request  %6d bytes allocated/request  (%d)%n",
+                name, (double) elapsed / operations, allocated / operations, sink & 1);
+    }
+}
@@ -0,0 +1,75 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+//in-process contention benchmark for the lock stripes: 1..N threads run a 90% get / 10% set mix against
+//getFromFile/setToFile, each thread on its own top-level keys. run it once with the default stripes and once with
+//-Djsondb.lockStripes=1, which behaves like the old single global ReadWriteLock
+//
+//  java -cp <classes>:gson.jar server.LockContentionBenchmark [maxThreads] [secondsPerRun]
+public class LockContentionBenchmark {
+
+    private static final int KEYS_PER_THREAD = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        useTempDatabase();
+
+        System.out.println("stripes=" + Integer.getInteger("jsondb.lockStripes", 64) + " cores=" + Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double opsPerSecond = run(threads, seconds);
+            System.out.printf("threads=%d  %.0f ops/s  %.0f ops/s per thread%n", threads, opsPerSecond, opsPerSecond / threads);
+        }
+        System.exit(0);
+    }
+
+    //keeps the benchmark off the real data directory and takes the disk out of the picture
+    static void useTempDatabase() throws IOException {
+        Path dir = Files.createTempDirectory("jsondb-bench");
+        Files.createDirectories(dir.resolve("src/server/data"));
+        System.setProperty("user.dir", dir.toString());
+        System.setProperty("jsondb.persistence", "wal");
+        System.setProperty("jsondb.wal.fsync", "interval");
+    }
+
+    private static double run(int threads, int seconds) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String prefix = "t" + t + "-";
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    JsonArray key = new JsonArray();
+                    key.add(prefix + random.nextInt(KEYS_PER_THREAD));
+                    key.add("field");
+                    if (random.nextInt(10) == 0) {
+                        Main.setToFile(key, new JsonPrimitive(done));
+                    } else {
+                        Main.getFromFile(key);
+                    }
+                    done++;
+                }
+                ops.add(done);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.sum() / (double) seconds;
+    }
+}
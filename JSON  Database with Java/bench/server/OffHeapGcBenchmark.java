@@ -0,0 +1,120 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+//GC pauses with large values on the heap versus off-heap. loads `keys` values of roughly `valueKb` KB each, then runs
+//a 90% get / 10% set mix for a while and reports the pauses seen during that phase. every get is written out through
+//FrameCodec like a real response would be. run it twice, the second time with -Djsondb.offHeap.thresholdBytes=16384
+//
+//  java -Xmx2g -cp <classes>:gson.jar server.OffHeapGcBenchmark [keys] [valueKb] [threads] [seconds]
+public class OffHeapGcBenchmark {
+
+    private static final List<Long> pauses = Collections.synchronizedList(new ArrayList<>());
+    private static volatile boolean measuring;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int valueKb = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        LockContentionBenchmark.useTempDatabase();
+        listenForPauses();
+
+        for (int i = 0; i < keys; i++) {
+            Main.setToFile(new JsonPrimitive("k" + i), value(valueKb));
+        }
+        System.gc();
+        measuring = true;
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        long[] ops = new long[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                FrameCodec codec = new FrameCodec(null, new DataOutputStream(OutputStream.nullOutputStream()));
+                codec.useChunkedFraming();
+                try {
+                    while (System.nanoTime() < deadline) {
+                        ReceivedRequest request = random.nextInt(10) == 0
+                                ? new ReceivedRequest("set", new JsonPrimitive("k" + random.nextInt(keys)), value(valueKb))
+                                : new ReceivedRequest("get", new JsonPrimitive("k" + random.nextInt(keys)), null);
+                        codec.writeResponse(Main.process(request, null));
+                        ops[id]++;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        measuring = false;
+
+        List<Long> sorted = new ArrayList<>(pauses);
+        Collections.sort(sorted);
+        long total = 0;
+        for (long op : ops) {
+            total += op;
+        }
+        System.out.printf("offHeap threshold=%d  ops/s=%.0f  pauses=%d  p50=%d ms  p99=%d ms  max=%d ms  total=%d ms%n",
+                Main.OFF_HEAP_THRESHOLD, total / (double) seconds, sorted.size(),
+                percentile(sorted, 0.50), percentile(sorted, 0.99),
+                sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1), sorted.stream().mapToLong(Long::longValue).sum());
+        System.exit(0);
+    }
+
+    //a record-like object tree of about kb KB of json, lots of small objects like real documents
+    private static JsonElement value(int kb) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        JsonArray items = new JsonArray();
+        for (int size = 0; size < kb * 1024; size += 60) {
+            JsonObject item = new JsonObject();
+            item.addProperty("id", random.nextInt());
+            item.addProperty("name", "item" + random.nextInt(1000));
+            item.addProperty("ok", random.nextBoolean());
+            items.add(item);
+        }
+        JsonObject value = new JsonObject();
+        value.add("items", items);
+        return value;
+    }
+
+    private static void listenForPauses() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (measuring && GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    GarbageCollectionNotificationInfo info =
+                            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    if (!info.getGcAction().contains("concurrent")) { //concurrent cycles do not stop the application
+                        pauses.add(info.getGcInfo().getDuration());
+                    }
+                }
+            }, null, null);
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.isEmpty() ? 0 : sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(p * sorted.size()) - 1));
+    }
+}
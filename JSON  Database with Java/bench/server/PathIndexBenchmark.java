@@ -0,0 +1,91 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+//nested lookups through Main.traverse versus one PathIndex lookup, plus what the index costs in heap. the documents
+//are `tops` top-level keys, each a tree `depth` levels deep with `fanOut` children per object
+//
+//  java -Xmx2g -cp <classes>:gson.jar server.PathIndexBenchmark [tops] [fanOut] [depth]
+public class PathIndexBenchmark {
+
+    public static void main(String[] args) {
+        int tops = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int fanOut = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        long baseline = usedHeap();
+        JsonObject[] docs = new JsonObject[tops];
+        for (int t = 0; t < tops; t++) {
+            docs[t] = (JsonObject) tree(fanOut, depth);
+        }
+        long documents = usedHeap() - baseline;
+
+        PathIndex index = new PathIndex();
+        for (int t = 0; t < tops; t++) {
+            index.update("k" + t, null, docs[t]);
+        }
+        long indexed = usedHeap() - baseline - documents;
+        System.out.printf("nodes=%d  documents=%.1f MB  index=%.1f MB (+%.0f%%, %.0f bytes/node)%n",
+                index.size(), documents / 1e6, indexed / 1e6, 100.0 * indexed / documents, (double) indexed / index.size());
+
+        JsonArray[] keys = new JsonArray[1 << 16];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new JsonArray();
+            keys[i].add("k" + random.nextInt(tops));
+            for (int d = 0; d < depth; d++) {
+                keys[i].add("f" + random.nextInt(fanOut));
+            }
+        }
+        for (int round = 0; round < 5; round++) { //the first rounds are warm-up
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < 2_000_000; i++) {
+                JsonArray key = keys[i & (keys.length - 1)];
+                JsonElement top = docs[Integer.parseInt(key.get(0).getAsString().substring(1))];
+                sink += Main.traverse(top, tail(key)).hashCode();
+            }
+            long traverse = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < 2_000_000; i++) {
+                sink += index.get(keys[i & (keys.length - 1)]).hashCode();
+            }
+            long lookup = System.nanoTime() - start;
+            System.out.printf("round %d  traverse %.0f ns/get  index %.0f ns/get  (%d)%n",
+                    round, traverse / 2e6, lookup / 2e6, sink & 1);
+        }
+    }
+
+    private static JsonElement tree(int fanOut, int depth) {
+        if (depth == 0) {
+            return new JsonPrimitive("value-" + ThreadLocalRandom.current().nextInt(1000));
+        }
+        JsonObject node = new JsonObject();
+        for (int i = 0; i < fanOut; i++) {
+            node.add("f" + i, tree(fanOut, depth - 1));
+        }
+        return node;
+    }
+
+    //same allocation as Main.getFromFile does before traversing
+    private static JsonArray tail(JsonArray keys) {
+        JsonArray rest = new JsonArray(keys.size() - 1);
+        for (int i = 1; i < keys.size(); i++) {
+            rest.add(keys.get(i));
+        }
+        return rest;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,92 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+
+//file size and load time of db.json versus db.bin for a database of user-like records (the same dozen keys repeated
+//in every record, which is where the binary dictionary pays off), and what mapping db.bin lazily costs instead
+//
+//  java -Xmx2g -cp <classes>:gson.jar server.StorageFormatBenchmark [records]
+public class StorageFormatBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        JsonObject root = new JsonObject();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < records; i++) {
+            JsonObject user = new JsonObject();
+            user.addProperty("name", "user" + i);
+            user.addProperty("email", "user" + i + "@example.com");
+            user.addProperty("status", random.nextBoolean() ? "active" : "inactive");
+            user.addProperty("age", 18 + random.nextInt(60));
+            user.addProperty("score", random.nextInt(100_000) / 100.0);
+            user.addProperty("verified", random.nextBoolean());
+            JsonObject address = new JsonObject();
+            address.addProperty("street", random.nextInt(999) + " Main Street");
+            address.addProperty("city", "City" + random.nextInt(500));
+            address.addProperty("zip", String.valueOf(10_000 + random.nextInt(89_999)));
+            user.add("address", address);
+            JsonArray tags = new JsonArray();
+            for (int t = random.nextInt(4); t > 0; t--) {
+                tags.add("tag" + random.nextInt(20));
+            }
+            user.add("tags", tags);
+            root.add("user:" + i, user);
+        }
+
+        File dir = Files.createTempDirectory("jsondb-format").toFile();
+        for (StorageFormat format : new StorageFormat[]{new JsonFormat(), new BinaryFormat()}) {
+            File file = new File(dir, format.fileName());
+            long start = System.nanoTime();
+            try (OutputStream out = new FileOutputStream(file)) {
+                format.write(root, out);
+            }
+            long written = System.nanoTime() - start;
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) { //best of 5, the first rounds are warm-up
+                int[] count = {0};
+                start = System.nanoTime();
+                format.read(file, (key, value) -> count[0]++);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%-8s %6.1f MB  write %5d ms  load %5d ms  heap %6.1f MB%n",
+                    format.fileName(), file.length() / 1e6, written / 1_000_000, best / 1_000_000, loadedHeap(format, file) / 1e6);
+            if (format instanceof BinaryFormat) {
+                long bestMap = Long.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    start = System.nanoTime();
+                    ColdStore.map(file);
+                    bestMap = Math.min(bestMap, System.nanoTime() - start);
+                }
+                long before = usedHeap();
+                ColdStore mapped = ColdStore.map(file);
+                long heap = usedHeap() - before;
+                System.out.printf("%-8s %6.1f MB  mmap %5d ms  heap %6.1f MB (%d keys)%n",
+                        "  mmap", file.length() / 1e6, bestMap / 1_000_000, heap / 1e6, mapped.size());
+            }
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    //heap held by the fully loaded database, the generated root is dropped from the picture by measuring around it
+    private static long loadedHeap(StorageFormat format, File file) throws IOException {
+        long before = usedHeap();
+        JsonObject loaded = new JsonObject();
+        format.read(file, loaded::add);
+        long heap = usedHeap() - before;
+        return loaded.size() > 0 ? heap : 0;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
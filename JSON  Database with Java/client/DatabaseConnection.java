@@ -0,0 +1,35 @@
+package client;
+
+import com.google.gson.JsonObject;
+import server.HashRing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+//what the client sends its requests through: one server (Session), every shard of a sharded database (ShardRouter)
+//or a leader and its read replicas (ReplicaRouter)
+interface DatabaseConnection extends Closeable {
+
+    //sends without waiting, the future completes with the response
+    CompletableFuture<JsonObject> send(JsonObject request) throws IOException;
+
+    //gets the notifications of our watches, set it before sending the watch
+    void onNotification(Consumer<JsonObject> listener);
+
+    //blocks until the server closes the connection, for a client that only waits for notifications
+    void awaitClosed() throws InterruptedException;
+
+    //shards is the -shards list, replicas the -replicas list of followers of the leader at address:port, null for
+    //a single server at address:port
+    static DatabaseConnection open(String address, int port, String shards, String replicas) throws IOException {
+        if (shards != null && replicas != null) {
+            throw new IllegalArgumentException("-shards and -replicas can not be combined");
+        }
+        if (shards != null) {
+            return new ShardRouter(HashRing.parse(shards));
+        }
+        return replicas != null ? new ReplicaRouter(address, port, replicas) : new Session(address, port);
+    }
+}
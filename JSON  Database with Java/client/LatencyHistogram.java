@@ -0,0 +1,71 @@
+package client;
+
+//latencies in nanoseconds, bucketed like HdrHistogram: every power of two is split into 128 linear sub-buckets, so any
+//recorded value is reported within 0.8% whether it is 3 µs or 3 s, in a fixed 60 KB no matter how many values.
+//one per thread and operation, merged at the end, so recording is a plain array increment
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * HALF + HALF];
+    private long total;
+    private long max;
+
+    void record(long nanos) {
+        counts[index(Math.max(0, nanos))]++;
+        total++;
+        max = Math.max(max, nanos);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    //the smallest recorded value that `percentile` % of all values are at or below (within the bucket precision)
+    long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    //values below SUB_BUCKETS get a bucket each, above that the top SUB_BUCKET_BITS bits pick the bucket
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long mantissa = index - (long) shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,309 @@
+package client;
+
+import com.beust.jcommander.Parameter;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import server.HashRing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+//-bench: drives a get/set/delete mix over `connections` sessions for a fixed time and prints throughput and latency
+//percentiles per operation. every connection is one closed loop (send, wait for the response, record, repeat), so the
+//latencies are what a client sees including its own json work. the keys are bench0..bench<keys-1>, all of them are
+//set once before the warm-up so gets find something
+//
+//  java client.Main -bench -connections 16 -duration 30 -distribution zipfian -mix get:90,set:10
+class LoadGenerator {
+
+    @Parameter(names = "-bench", description = "Run a load test instead of sending a single request")
+    boolean enabled;
+    @Parameter(names = "-connections", description = "Sessions, each driven by its own thread")
+    private int connections = 8;
+    @Parameter(names = "-duration", description = "Measured seconds")
+    private int duration = 10;
+    @Parameter(names = "-warmup", description = "Seconds run before measuring")
+    private int warmup = 2;
+    @Parameter(names = "-keys", description = "Number of distinct keys")
+    private int keys = 10_000;
+    @Parameter(names = "-distribution", description = "Key distribution: uniform, zipfian or hotset")
+    private String distribution = "uniform";
+    @Parameter(names = "-hotKeys", description = "hotset: fraction of the keys that are hot")
+    private double hotKeys = 0.2;
+    @Parameter(names = "-hotOps", description = "hotset: fraction of the operations that go to the hot keys")
+    private double hotOps = 0.8;
+    @Parameter(names = "-mix", description = "Operation weights, e.g. get:80,set:15,delete:5")
+    private String mix = "get:80,set:15,delete:5";
+    @Parameter(names = "-valueSize", description = "Characters per value written by set")
+    private int valueSize = 100;
+
+    private static final String[] OPERATIONS = {"get", "set", "delete"};
+
+    //shards and replicas are the -shards and -replicas lists, see DatabaseConnection.open
+    void run(String address, int port, String shards, String replicas) {
+        int[] weights;
+        KeyChooser chooser;
+        try {
+            if (connections < 1 || keys < 1 || duration < 1 || warmup < 0) {
+                throw new IllegalArgumentException("-connections, -keys and -duration must be positive");
+            }
+            weights = weights(mix);
+            chooser = KeyChooser.named(distribution, keys, hotKeys, hotOps);
+            if (shards != null) {
+                HashRing.parse(shards); //fail here and not in every worker
+            }
+            if (shards != null && replicas != null) {
+                throw new IllegalArgumentException("-shards and -replicas can not be combined");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Input Error: " + e.getMessage());
+            return;
+        }
+        JsonPrimitive value = new JsonPrimitive("x".repeat(valueSize));
+
+        System.out.printf("Load: %d connections, %d s (+%d s warm-up), %d keys %s, %d character values, mix %s%n",
+                connections, duration, warmup, keys, distribution, valueSize, mix);
+        try {
+            preload(address, port, shards, replicas, value);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not preload the keys: " + e.getMessage());
+            return;
+        }
+
+        long start = System.nanoTime();
+        long measureFrom = start + warmup * 1_000_000_000L;
+        long deadline = measureFrom + duration * 1_000_000_000L;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker(address, port, shards, replicas, chooser, weights, value, measureFrom, deadline);
+            worker.thread = new Thread(worker, "load-" + i);
+            workers.add(worker);
+        }
+        workers.forEach(worker -> worker.thread.start());
+
+        LatencyHistogram[] merged = new LatencyHistogram[OPERATIONS.length];
+        long[] errors = new long[OPERATIONS.length];
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            merged[op] = new LatencyHistogram();
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (worker.failure != null) {
+                System.err.println("Connection failed: " + worker.failure.getMessage());
+            }
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                merged[op].add(worker.latencies[op]);
+                errors[op] += worker.errors[op];
+            }
+        }
+        report(merged, errors);
+    }
+
+    //pipelined sets of every key over one session, so the first gets are not all misses
+    private void preload(String address, int port, String shards, String replicas, JsonPrimitive value) throws IOException {
+        try (DatabaseConnection session = DatabaseConnection.open(address, port, shards, replicas)) {
+            List<CompletableFuture<JsonObject>> inFlight = new ArrayList<>();
+            for (int k = 0; k < keys; k++) {
+                inFlight.add(session.send(request("set", k, value)));
+                if (inFlight.size() == 256 || k == keys - 1) {
+                    inFlight.forEach(CompletableFuture::join);
+                    inFlight.clear();
+                }
+            }
+        }
+    }
+
+    private void report(LatencyHistogram[] latencies, long[] errors) {
+        LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+        System.out.printf("%-7s %10s %10s %8s %9s %9s %9s %9s %9s%n",
+                "op", "count", "ops/s", "errors", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            if (latencies[op].count() > 0) {
+                row(OPERATIONS[op], latencies[op], errors[op]);
+            }
+            all.add(latencies[op]);
+            allErrors += errors[op];
+        }
+        row("all", all, allErrors);
+    }
+
+    private void row(String name, LatencyHistogram latencies, long errors) {
+        System.out.printf(Locale.ROOT, "%-7s %10d %10.0f %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                name, latencies.count(), (double) latencies.count() / duration, errors,
+                latencies.percentile(50) / 1e3, latencies.percentile(90) / 1e3, latencies.percentile(99) / 1e3,
+                latencies.percentile(99.9) / 1e3, latencies.max() / 1e3);
+    }
+
+    //"get:80,set:15,delete:5" -> cumulative weights in OPERATIONS order, missing operations get 0
+    private static int[] weights(String mix) {
+        Map<String, Integer> parsed = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.trim().split(":");
+            if (nameAndWeight.length != 2) {
+                throw new IllegalArgumentException("Bad -mix entry '" + part + "', expected op:weight");
+            }
+            int weight = Integer.parseInt(nameAndWeight[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight in -mix: " + part);
+            }
+            parsed.put(nameAndWeight[0].trim().toLowerCase(), weight);
+        }
+        int[] cumulative = new int[OPERATIONS.length];
+        int sum = 0;
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            sum += parsed.getOrDefault(OPERATIONS[op], 0);
+            cumulative[op] = sum;
+        }
+        parsed.keySet().removeAll(List.of(OPERATIONS));
+        if (!parsed.isEmpty() || sum <= 0) {
+            throw new IllegalArgumentException("-mix takes positive weights for get, set and delete, not " + mix);
+        }
+        return cumulative;
+    }
+
+    private static JsonObject request(String type, long key, JsonPrimitive value) {
+        JsonObject request = new JsonObject();
+        request.addProperty("type", type);
+        request.addProperty("key", "bench" + key);
+        if (value != null) {
+            request.add("value", value);
+        }
+        return request;
+    }
+
+    //one connection's closed loop, its histograms are only read after the thread has finished
+    private static class Worker implements Runnable {
+        final String address;
+        final int port;
+        final String shards;
+        final String replicas;
+        final KeyChooser chooser;
+        final int[] weights;
+        final JsonPrimitive value;
+        final long measureFrom;
+        final long deadline;
+        final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+        final long[] errors = new long[OPERATIONS.length];
+        Thread thread;
+        Exception failure;
+
+        Worker(String address, int port, String shards, String replicas, KeyChooser chooser, int[] weights, JsonPrimitive value,
+               long measureFrom, long deadline) {
+            this.address = address;
+            this.port = port;
+            this.shards = shards;
+            this.replicas = replicas;
+            this.chooser = chooser;
+            this.weights = weights;
+            this.value = value;
+            this.measureFrom = measureFrom;
+            this.deadline = deadline;
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                latencies[op] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            Random random = ThreadLocalRandom.current();
+            try (DatabaseConnection session = DatabaseConnection.open(address, port, shards, replicas)) {
+                while (true) {
+                    int roll = random.nextInt(weights[weights.length - 1]);
+                    int op = 0;
+                    while (roll >= weights[op]) {
+                        op++;
+                    }
+                    long key = chooser.next(random);
+                    long sent = System.nanoTime();
+                    JsonObject response = session.send(request(OPERATIONS[op], key, op == 1 ? value : null)).join();
+                    long received = System.nanoTime();
+                    if (received >= deadline) {
+                        return;
+                    }
+                    if (sent >= measureFrom) {
+                        latencies[op].record(received - sent);
+                        if (!"OK".equals(response.get("response").getAsString())) {
+                            errors[op]++; //mostly gets and deletes of keys a delete already removed
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+    }
+}
+
+//which key the next operation goes to, as an index in [0, keys)
+interface KeyChooser {
+
+    long next(Random random);
+
+    static KeyChooser named(String name, int keys, double hotKeys, double hotOps) {
+        return switch (name.trim().toLowerCase()) {
+            case "uniform" -> random -> random.nextInt(keys);
+            case "zipfian" -> new ZipfianKeys(keys, 0.99);
+            case "hotset" -> {
+                int hot = Math.max(1, (int) (keys * hotKeys));
+                if (hot >= keys) {
+                    yield random -> random.nextInt(keys); //everything is hot
+                }
+                yield random -> random.nextDouble() < hotOps ? random.nextInt(hot) : hot + random.nextInt(keys - hot);
+            }
+            default -> throw new IllegalArgumentException("Unknown key distribution: " + name);
+        };
+    }
+}
+
+//key 0 is the most popular, then 1, ... with popularity ~ 1/rank^theta. the constant time method from Gray et al.,
+//"Quickly generating billion-record synthetic databases", the same one YCSB uses
+class ZipfianKeys implements KeyChooser {
+
+    private final long keys;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    ZipfianKeys(long keys, double theta) {
+        this.keys = keys;
+        this.theta = theta;
+        this.zetaN = zeta(keys, theta);
+        this.alpha = 1 / (1 - theta);
+        this.eta = (1 - Math.pow(2.0 / keys, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    @Override
+    public long next(Random random) {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        return Math.min(keys - 1, (long) (keys * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
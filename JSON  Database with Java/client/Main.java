@@ -4,17 +4,21 @@ import com.beust.jcommander.IStringConverter;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 class Main {
     @Parameter(names = {"-type", "-t"} , description = "Type of Request")
@@ -25,52 +29,104 @@ class Main {
     private JsonElement key;
     @Parameter(names = {"-value", "-v"} , converter = TypeConverter.class , description = "Property value")
     private JsonElement value;
+    @Parameter(names = {"-expected", "-e"} , converter = TypeConverter.class , description = "Expected current value for cas")
+    private JsonElement expected;
+    @Parameter(names = "-ttl", description = "set, cas and incr: the key expires this many milliseconds from now")
+    private Long ttl;
+    @Parameter(names = "-shards", description = "Sharded database: every shard as host:port, comma separated")
+    private String shards;
+    @Parameter(names = "-replicas", description = "Followers to read from as host:port, comma separated, writes go to the leader")
+    private String replicas;
 
     private static final int SERVER_PORT = 15000;
     private static final String SERVER_ADDRESS = "127.0.0.1";
 
     public static void main(String[] args) {
         Main main = new Main();
-        JCommander.newBuilder().addObject(main).build().parse(args);
+        LoadGenerator load = new LoadGenerator();
+        JCommander.newBuilder().addObject(main).addObject(load).build().parse(args);
+        if (load.enabled) {
+            load.run(SERVER_ADDRESS, SERVER_PORT, main.shards, main.replicas);
+            return;
+        }
         main.run();
     }
 
     public void run() {
-        try (
-                //create socket object and input and output data object
-                Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT); //create socket object for communication
-                DataInputStream input = new DataInputStream(socket.getInputStream());
-                DataOutputStream output = new DataOutputStream(socket.getOutputStream())
-        ) {
-            System.out.println("Client started!");
-
-            // Handle exit before parsing type
-           if ("exit".equalsIgnoreCase(type)) {
-               String exitJson = "{\"type\":\"exit\"}";
-                output.writeUTF(exitJson);
-                System.out.println("Sent: " + exitJson);
+        JsonArray requests = new JsonArray();
+
+        // Handle exit before parsing type
+        if ("exit".equalsIgnoreCase(type)) {
+            JsonObject exit = new JsonObject();
+            exit.addProperty("type", "exit");
+            requests.add(exit);
+        } else {
+            String jsonString;
+            try {
+                JsonPreparationStrategy strategy = JsonStrategyFactory.selectStrategy(type, key, value, expected, ttl, fileName); //selects which strategy is chosen (either CommandLine or read from file)
+                JsonMaker maker = new JsonMaker(); //create invoker class object
+                maker.setStrategy(strategy); //set chosen strategy
+                jsonString = maker.prepare(); //use invoker to execute strategy
+            } catch (ClientInputException e) {
+                System.err.println("Input Error: " + e.getMessage());
+                return;
+            }
 
-                String response = input.readUTF();
-                System.out.println("Received: " + response);
-                return; // exit after sending
-           }
+            JsonElement parsed = parseOrNull(jsonString);
+            if (parsed == null || !(parsed.isJsonObject() || parsed.isJsonArray())) {
+                System.err.println("Input Error: request is not a JSON object: " + jsonString);
+                return;
+            }
+            if (parsed.isJsonArray()) {
+                requests = parsed.getAsJsonArray(); //a file with a list of requests is pipelined over the session
+                for (JsonElement request : requests) {
+                    if (!request.isJsonObject()) { //checked up front so nothing is sent for a half valid file
+                        System.err.println("Input Error: request is not a JSON object: " + request);
+                        return;
+                    }
+                }
+            } else {
+                requests.add(parsed);
+            }
+        }
 
-            JsonPreparationStrategy strategy = JsonStrategyFactory.selectStrategy(type, key, value, fileName); //selects which strategy is chosen (either CommandLine or read from file)
-            JsonMaker maker = new JsonMaker(); //create invoker class object
-            maker.setStrategy(strategy); //set chosen strategy
-            String jsonString = maker.prepare(); //use invoker to execute strategy
+        //every request goes over a chunked session, so neither requests nor responses are limited to 64 KB
+        try (DatabaseConnection session = DatabaseConnection.open(SERVER_ADDRESS, SERVER_PORT, shards, replicas)) {
+            System.out.println("Client started!");
+            session.onNotification(notification -> System.out.println("Notification: " + notification));
+
+            List<CompletableFuture<JsonObject>> responses = new ArrayList<>();
+            boolean watching = false;
+            for (JsonElement request : requests) {
+                responses.add(session.send(request.getAsJsonObject()));
+                System.out.println("Sent: " + request);
+                JsonElement requestType = request.getAsJsonObject().get("type");
+                watching |= requestType != null && requestType.isJsonPrimitive() && "watch".equals(requestType.getAsString());
+            }
 
-            output.writeUTF(jsonString); //send json string
-            System.out.println("Sent: " +jsonString);
+            for (CompletableFuture<JsonObject> response : responses) {
+                System.out.println("Received: " + response.join());
+            }
 
-            String receivedString = input.readUTF(); //receive json response from server
-            System.out.println("Received: " + receivedString);
+            if (watching) { //keep printing notifications until the server goes away or we are stopped
+                session.awaitClosed();
+            }
 
-        } catch (ClientInputException e) {
-            System.err.println("Input Error: " + e.getMessage());
-        } catch (IOException e) {
+        } catch (IllegalArgumentException e) {
+            System.err.println("Input Error: " + e.getMessage()); //a -shards or -replicas list that does not parse
+        } catch (IOException | CompletionException e) {
             System.err.println("I/O Error: " + e.getMessage());
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static JsonElement parseOrNull(String json) {
+        try {
+            return JsonParser.parseString(json);
+        } catch (JsonParseException e) {
+            return null; //let the server complain about it
         }
     }
 }
@@ -79,6 +135,8 @@ class SendRequest { //class to deserialize arguments from command line
     private String type;
     private JsonElement key;
     private JsonElement value;
+    private JsonElement expected; //only sent for cas
+    private Long ttlMs; //only sent when -ttl is given
 
     public SendRequest(String type, JsonElement key, JsonElement value) {
         this.type = type;
@@ -86,6 +144,16 @@ class SendRequest { //class to deserialize arguments from command line
         this.value = value;
     }
 
+    public SendRequest(String type, JsonElement key, JsonElement value, JsonElement expected) {
+        this(type, key, value);
+        this.expected = expected;
+    }
+
+    public SendRequest(String type, JsonElement key, JsonElement value, JsonElement expected, Long ttlMs) {
+        this(type, key, value, expected);
+        this.ttlMs = ttlMs;
+    }
+
     protected void setType(String type) {
         this.type = type;
     }
@@ -138,18 +206,22 @@ class PrepareFromCommandLine implements JsonPreparationStrategy { //prepares Jso
     String type;
     JsonElement key;
     JsonElement value;
+    JsonElement expected;
+    Long ttl;
     String jsonString;
     private static final Gson gson = new Gson();
 
-    public PrepareFromCommandLine(String type, JsonElement key, JsonElement value) {
+    public PrepareFromCommandLine(String type, JsonElement key, JsonElement value, JsonElement expected, Long ttl) {
         this.type = type;
         this.key = key;
         this.value = value;
+        this.expected = expected;
+        this.ttl = ttl;
     }
 
     @Override
     public String prepareJson(){
-        SendRequest sendRequest = new SendRequest(type,key,value); //deserialize type, key and value to sendRequest object
+        SendRequest sendRequest = new SendRequest(type,key,value,expected,ttl); //deserialize type, key and value to sendRequest object
         jsonString = gson.toJson(sendRequest); //now serialize to Json String
         return jsonString;
     }
@@ -168,7 +240,7 @@ class JsonMaker { //invoker class of Command pattern
 }
 
 enum RequestType {
-    GET, SET, DELETE , EXIT;
+    GET, SET, DELETE , EXIT, MGET, MSET, MDELETE, TRANSACTION, CAS, INCR, CREATEINDEX, DROPINDEX, QUERY, SCAN, STATS, WATCH, UNWATCH;
 
     public static boolean isValid(String value) { //only accommodates valid requests
         if (value == null) return false;
@@ -183,7 +255,7 @@ enum RequestType {
 
 class JsonStrategyFactory {
 
-    public static JsonPreparationStrategy selectStrategy(String type, JsonElement key, JsonElement value, String fileName) throws ClientInputException {
+    public static JsonPreparationStrategy selectStrategy(String type, JsonElement key, JsonElement value, JsonElement expected, Long ttl, String fileName) throws ClientInputException {
 
         boolean useFile = fileName != null && !fileName.isBlank(); //read from file if user specifies file name
         boolean useCmd = type != null && !type.isBlank(); //take command line arguments if user specifies type
@@ -222,12 +294,14 @@ class JsonStrategyFactory {
 
         RequestType reqType = RequestType.valueOf(type.toUpperCase());
 
-        if ((reqType == RequestType.SET || reqType == RequestType.DELETE)
-                && (key.isJsonNull())) {
+        if ((reqType == RequestType.SET || reqType == RequestType.DELETE
+                || reqType == RequestType.CAS || reqType == RequestType.INCR
+                || reqType == RequestType.WATCH || reqType == RequestType.UNWATCH)
+                && (key == null || key.isJsonNull())) {
             throw new ClientInputException("'-k <key>' must be provided for type '" + type + "'.");
         }
 
-        return new PrepareFromCommandLine(type, key, value);
+        return new PrepareFromCommandLine(type, key, value, expected, ttl);
     }
 }
 
@@ -0,0 +1,86 @@
+package client;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+//client side of a leader with followers: writes and everything else go to the leader, reads are spread over the
+//followers round robin. every read carries "after": the highest "seq" the leader has answered one of our writes with,
+//so a follower in readYourWrites mode never answers from before our own last write (a follower in eventual mode
+//ignores it)
+//
+//  java client.Main -replicas 127.0.0.1:15001,127.0.0.1:15002 -t get -k a
+class ReplicaRouter implements DatabaseConnection {
+
+    private static final Set<String> READS = Set.of("get", "mget", "scan", "query");
+
+    private final Session leader;
+    private final List<Session> followers = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong lastWrite = new AtomicLong();
+
+    ReplicaRouter(String address, int port, String replicas) throws IOException {
+        leader = new Session(address, port);
+        try {
+            for (String replica : replicas.split(",")) {
+                String trimmed = replica.trim();
+                int colon = trimmed.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Replicas are host:port, not '" + replica + "'");
+                }
+                followers.add(new Session(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1))));
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<JsonObject> send(JsonObject request) throws IOException {
+        JsonElement type = request.get("type");
+        if (type != null && type.isJsonPrimitive() && READS.contains(type.getAsString())) {
+            long after = lastWrite.get();
+            JsonObject read = request;
+            if (after > 0) {
+                read = request.deepCopy();
+                read.addProperty("after", after);
+            }
+            return followers.get(Math.floorMod(next.getAndIncrement(), followers.size())).send(read);
+        }
+        return leader.send(request).thenApply(response -> {
+            JsonElement seq = response.get("seq");
+            if (seq != null) {
+                lastWrite.accumulateAndGet(seq.getAsLong(), Math::max);
+            }
+            return response;
+        });
+    }
+
+    //watches are not in READS, they go to the leader
+    @Override
+    public void onNotification(Consumer<JsonObject> listener) {
+        leader.onNotification(listener);
+    }
+
+    @Override
+    public void awaitClosed() throws InterruptedException {
+        leader.awaitClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Session follower : followers) {
+            follower.close();
+        }
+        leader.close();
+    }
+}
@@ -0,0 +1,141 @@
+package client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import server.ChunkedInputStream;
+import server.ChunkedOutputStream;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+//one long lived connection to the server. requests can be sent back to back without waiting for the previous
+//response, a reader thread matches every response to its request by the id the server echoes back. notifications of
+//watches carry no id and go to the notification listener instead.
+//after the handshake both directions use chunked framing, so requests and responses can be any size
+class Session implements DatabaseConnection {
+
+    private static final Gson gson = new Gson();
+
+    private final Socket socket;
+    private final ChunkedInputStream input;
+    private final ChunkedOutputStream output;
+    private final Writer writer;
+    private final Map<Long, CompletableFuture<JsonObject>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Thread reader;
+    private volatile Consumer<JsonObject> notifications = notification -> { };
+    private volatile IOException closed; //why the reader stopped, null while it is running
+
+    Session(String address, int port) throws IOException {
+        socket = new Socket(address, port);
+        socket.setTcpNoDelay(true); //small pipelined requests should not wait for Nagle
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        //the handshake itself still uses writeUTF so that the server knows what is coming
+        out.writeUTF("{\"type\":\"session\",\"framing\":\"chunked\"}");
+        out.flush();
+        JsonObject ack = JsonParser.parseString(in.readUTF()).getAsJsonObject();
+        if (!"OK".equals(ack.get("response").getAsString())) {
+            socket.close();
+            throw new IOException("Server refused session: " + ack);
+        }
+        input = new ChunkedInputStream(in);
+        output = new ChunkedOutputStream(out);
+        writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+
+        reader = new Thread(this::readResponses, "session-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    //sends the request without waiting, the future completes when the matching response arrives
+    @Override
+    public CompletableFuture<JsonObject> send(JsonObject request) throws IOException {
+        long id = nextId.incrementAndGet();
+        CompletableFuture<JsonObject> response = new CompletableFuture<>();
+        pending.put(id, response);
+        IOException failure = closed; //checked after registering, so the reader either fails this future or we do
+        if (failure != null) {
+            pending.remove(id);
+            throw failure;
+        }
+
+        JsonObject withId = new JsonObject(); //shallow copy, the caller's request stays untouched
+        request.entrySet().forEach(e -> withId.add(e.getKey(), e.getValue()));
+        withId.add("id", new JsonPrimitive(id));
+        try {
+            synchronized (output) {
+                gson.toJson(withId, writer);
+                writer.flush();
+                output.endMessage();
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            throw e;
+        }
+        return response;
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                input.nextMessage();
+                JsonReader reader = new JsonReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                JsonObject response = JsonParser.parseReader(reader).getAsJsonObject();
+                JsonElement id = response.remove("id"); //protocol detail, callers only see the response itself
+                if (id == null && response.has("watch")) {
+                    notifications.accept(response);
+                    continue;
+                }
+                CompletableFuture<JsonObject> waiting = id == null ? null : pending.remove(id.getAsLong());
+                if (waiting != null) {
+                    waiting.complete(response);
+                }
+            }
+        } catch (IOException e) {
+            failAll(e); //connection closed
+        } catch (RuntimeException e) {
+            failAll(new IOException("Unreadable response from server: " + e.getMessage(), e));
+        }
+    }
+
+    //the reader is gone, nothing will complete what is still outstanding or sent from now on
+    private void failAll(IOException e) {
+        closed = e;
+        for (Long id : pending.keySet()) {
+            CompletableFuture<JsonObject> waiting = pending.remove(id);
+            if (waiting != null) {
+                waiting.completeExceptionally(e);
+            }
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+
+    @Override
+    public void onNotification(Consumer<JsonObject> listener) {
+        notifications = listener;
+    }
+
+    @Override
+    public void awaitClosed() throws InterruptedException {
+        reader.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,301 @@
+package client;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import server.HashRing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+//client side routing for a sharded database: one session per shard, every request goes to the shard that owns its
+//top-level key on the same HashRing the servers are started with. requests over the whole database (root get, root
+//scan, queries and indexes over the top-level keys, stats, exit) go to every shard and the answers are merged.
+//writes that span shards are refused, a shard can only make its own part of an mset or transaction atomic
+//
+//  java client.Main -shards 127.0.0.1:15000,127.0.0.1:15001,127.0.0.1:15002 -t get -k []
+class ShardRouter implements DatabaseConnection {
+
+    private final HashRing ring;
+    private final Map<String, Session> sessions = new LinkedHashMap<>();
+
+    ShardRouter(HashRing ring) throws IOException {
+        this.ring = ring;
+        try {
+            for (String shard : ring.shards()) {
+                int colon = shard.lastIndexOf(':');
+                sessions.put(shard, new Session(shard.substring(0, colon), Integer.parseInt(shard.substring(colon + 1))));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<JsonObject> send(JsonObject request) throws IOException {
+        String type = request.has("type") && request.get("type").isJsonPrimitive() ? request.get("type").getAsString() : "";
+        JsonElement key = request.get("key");
+        switch (type) {
+            case "exit":
+                return everyShard(request).thenApply(ShardRouter::firstError);
+            case "createIndex", "dropIndex":
+                if (isRoot(key)) {
+                    return everyShard(request).thenApply(ShardRouter::firstError);
+                }
+                break;
+            case "stats":
+                return everyShard(request).thenApply(this::perShard);
+            case "mget":
+                return splitGet(request);
+            case "mset", "mdelete", "transaction":
+                return sameShard(request);
+            case "scan":
+                if (isRoot(key)) {
+                    return everyShard(request).thenApply(responses -> mergeScan(responses, request));
+                }
+                break;
+            case "query":
+                if (isRoot(key)) {
+                    return everyShard(request).thenApply(responses -> mergeQuery(responses, request));
+                }
+                break;
+            default:
+                if (isRoot(key)) {
+                    return "get".equals(type)
+                            ? everyShard(request).thenApply(ShardRouter::mergeRoot)
+                            : CompletableFuture.completedFuture(error("'" + type + "' on the whole database is not supported when sharded"));
+                }
+        }
+        return sessions.get(shardOf(key)).send(request);
+    }
+
+    //the shard of a key, keys that are not keys at all go to the first shard, which reports the problem
+    private String shardOf(JsonElement key) {
+        String top = topKey(key);
+        return top == null ? ring.shards().get(0) : ring.shardOf(top);
+    }
+
+    //same rule as server.Main.topKey, null for a missing or empty key
+    private static String topKey(JsonElement key) {
+        if (key == null) {
+            return null;
+        }
+        if (key.isJsonPrimitive()) {
+            return key.getAsString();
+        }
+        if (key.isJsonArray() && !key.getAsJsonArray().isEmpty() && key.getAsJsonArray().get(0).isJsonPrimitive()) {
+            return key.getAsJsonArray().get(0).getAsString();
+        }
+        return null;
+    }
+
+    private static boolean isRoot(JsonElement key) {
+        return key != null && key.isJsonArray() && key.getAsJsonArray().isEmpty();
+    }
+
+    //each shard gets an mget of its own keys, the results are put back in request order
+    private CompletableFuture<JsonObject> splitGet(JsonObject request) throws IOException {
+        JsonArray entries = requests(request);
+        if (entries == null) {
+            return sessions.get(ring.shards().get(0)).send(request);
+        }
+        Map<String, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            JsonElement entry = entries.get(i);
+            positions.computeIfAbsent(shardOf(entry.isJsonObject() ? entry.getAsJsonObject().get("key") : null),
+                    shard -> new ArrayList<>()).add(i);
+        }
+        List<String> shards = new ArrayList<>(positions.keySet());
+        List<CompletableFuture<JsonObject>> parts = new ArrayList<>();
+        for (String shard : shards) {
+            JsonArray part = new JsonArray();
+            positions.get(shard).forEach(i -> part.add(entries.get(i)));
+            JsonObject partRequest = request.deepCopy();
+            partRequest.add("requests", part);
+            parts.add(sessions.get(shard).send(partRequest));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            JsonElement[] results = new JsonElement[entries.size()];
+            for (int s = 0; s < shards.size(); s++) {
+                JsonObject response = parts.get(s).join();
+                if (!isOk(response) || !response.has("results")) {
+                    return response;
+                }
+                JsonArray partResults = response.getAsJsonArray("results");
+                List<Integer> at = positions.get(shards.get(s));
+                for (int i = 0; i < at.size(); i++) {
+                    results[at.get(i)] = partResults.get(i);
+                }
+            }
+            JsonArray merged = new JsonArray();
+            for (JsonElement result : results) {
+                merged.add(result);
+            }
+            JsonObject response = ok();
+            response.add("results", merged);
+            return response;
+        });
+    }
+
+    //batch writes go through as they are when every key lives on one shard
+    private CompletableFuture<JsonObject> sameShard(JsonObject request) throws IOException {
+        JsonArray entries = requests(request);
+        String shard = null;
+        for (JsonElement entry : entries == null ? new JsonArray() : entries) {
+            String entryShard = shardOf(entry.isJsonObject() ? entry.getAsJsonObject().get("key") : null);
+            if (shard != null && !shard.equals(entryShard)) {
+                return CompletableFuture.completedFuture(error("Keys of one " + request.get("type").getAsString()
+                        + " must live on the same shard"));
+            }
+            shard = entryShard;
+        }
+        return sessions.get(shard == null ? ring.shards().get(0) : shard).send(request);
+    }
+
+    private static JsonArray requests(JsonObject request) {
+        JsonElement entries = request.get("requests");
+        return entries != null && entries.isJsonArray() ? entries.getAsJsonArray() : null;
+    }
+
+    private CompletableFuture<List<JsonObject>> everyShard(JsonObject request) throws IOException {
+        List<CompletableFuture<JsonObject>> responses = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            responses.add(session.send(request));
+        }
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> responses.stream().map(CompletableFuture::join).toList());
+    }
+
+    //the shards' parts of the database never share a top-level key, so the root is simply all of them together
+    private static JsonObject mergeRoot(List<JsonObject> responses) {
+        JsonObject root = new JsonObject();
+        for (JsonObject response : responses) {
+            if (!isOk(response)) {
+                return response;
+            }
+            response.getAsJsonObject("value").entrySet().forEach(entry -> root.add(entry.getKey(), entry.getValue()));
+        }
+        JsonObject merged = ok();
+        merged.add("value", root);
+        return merged;
+    }
+
+    //every shard answered the same page request, so the page of the whole database is the first `limit` keys of all
+    //of them. a shard that has more only has keys after its own last one, which is at or after the merged page's
+    //last key, so nothing is skipped when the next page starts at that cursor
+    private static JsonObject mergeScan(List<JsonObject> responses, JsonObject request) {
+        int limit = request.has("limit") ? request.get("limit").getAsInt() : 100;
+        TreeMap<String, JsonElement> entries = new TreeMap<>();
+        boolean more = false;
+        for (JsonObject response : responses) {
+            if (!isOk(response)) {
+                return response;
+            }
+            response.getAsJsonObject("value").entrySet().forEach(entry -> entries.put(entry.getKey(), entry.getValue()));
+            more |= response.has("cursor");
+        }
+        JsonObject page = new JsonObject();
+        String last = null;
+        for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+            if (page.size() == limit) {
+                more = true;
+                break;
+            }
+            page.add(entry.getKey(), entry.getValue());
+            last = entry.getKey();
+        }
+        JsonObject merged = ok();
+        merged.add("value", page);
+        if (more && last != null) {
+            merged.addProperty("cursor", last);
+        }
+        return merged;
+    }
+
+    //matches of every shard, cut to the limit. with a limit the cut is by shard order, not by value
+    private static JsonObject mergeQuery(List<JsonObject> responses, JsonObject request) {
+        int limit = request.has("limit") ? request.get("limit").getAsInt() : Integer.MAX_VALUE;
+        JsonObject matches = new JsonObject();
+        for (JsonObject response : responses) {
+            if (!isOk(response)) {
+                return response;
+            }
+            for (Map.Entry<String, JsonElement> entry : response.getAsJsonObject("value").entrySet()) {
+                if (matches.size() < limit) {
+                    matches.add(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        JsonObject merged = ok();
+        merged.add("value", matches);
+        return merged;
+    }
+
+    private static JsonObject firstError(List<JsonObject> responses) {
+        return responses.stream().filter(response -> !isOk(response)).findFirst().orElseGet(ShardRouter::ok);
+    }
+
+    private JsonObject perShard(List<JsonObject> responses) {
+        JsonObject byShard = new JsonObject();
+        List<String> shards = ring.shards();
+        for (int i = 0; i < shards.size(); i++) {
+            JsonObject response = responses.get(i);
+            byShard.add(shards.get(i), isOk(response) ? response.get("value") : response);
+        }
+        JsonObject merged = ok();
+        merged.add("value", byShard);
+        return merged;
+    }
+
+    private static boolean isOk(JsonObject response) {
+        return "OK".equals(response.get("response").getAsString());
+    }
+
+    private static JsonObject ok() {
+        JsonObject response = new JsonObject();
+        response.addProperty("response", "OK");
+        return response;
+    }
+
+    private static JsonObject error(String reason) {
+        JsonObject response = new JsonObject();
+        response.addProperty("response", "ERROR");
+        response.addProperty("reason", reason);
+        return response;
+    }
+
+    //a watch goes to the shard of its key like a get, its notifications come back on that shard's session
+    @Override
+    public void onNotification(Consumer<JsonObject> listener) {
+        sessions.values().forEach(session -> session.onNotification(listener));
+    }
+
+    @Override
+    public void awaitClosed() throws InterruptedException {
+        for (Session session : sessions.values()) {
+            session.awaitClosed();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Session session : sessions.values()) {
+            try {
+                session.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
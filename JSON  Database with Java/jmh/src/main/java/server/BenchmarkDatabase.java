@@ -0,0 +1,88 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+//the data set every benchmark runs against: `documents` top-level keys d0, d1, ... each holding a tree `depth`
+//levels deep with about `fields` leaves. JMH runs every parameter combination in its own JVM, and Main loads its
+//static state the first time it is touched, so each fork gets a database of its own
+final class BenchmarkDatabase {
+
+    final JsonObject[] documents;
+    final int fanOut;
+    final int depth;
+    final JsonArray[] keys; //full paths to random leaves, "d7", "f3", "f0", ...
+    final int[] tops; //keys[i] is a leaf of documents[tops[i]]
+    final JsonArray[] tails; //keys[i] without the top-level key, what traverse walks
+
+    private BenchmarkDatabase(int documentCount, int fields, int depth) {
+        this.depth = depth;
+        this.fanOut = Math.max(2, (int) Math.ceil(Math.pow(fields, 1.0 / depth) - 1e-9));
+        this.documents = new JsonObject[documentCount];
+        for (int i = 0; i < documentCount; i++) {
+            documents[i] = (JsonObject) tree(depth, i);
+        }
+        Random random = new Random(42);
+        keys = new JsonArray[4096];
+        tops = new int[keys.length];
+        tails = new JsonArray[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            tops[i] = random.nextInt(documentCount);
+            keys[i] = new JsonArray();
+            tails[i] = new JsonArray();
+            keys[i].add("d" + tops[i]);
+            for (int level = 0; level < depth; level++) {
+                JsonPrimitive name = new JsonPrimitive("f" + random.nextInt(fanOut));
+                keys[i].add(name);
+                tails[i].add(name);
+            }
+        }
+    }
+
+    //builds the documents and stores them through Main.setToFile, in a fresh temporary database
+    static BenchmarkDatabase load(int documentCount, int fields, int depth) throws IOException {
+        useTempDatabase();
+        BenchmarkDatabase data = new BenchmarkDatabase(documentCount, fields, depth);
+        for (int i = 0; i < documentCount; i++) {
+            SendResponse response = Main.setToFile(new JsonPrimitive("d" + i), data.documents[i]);
+            if (!"OK".equals(response.response)) {
+                throw new IllegalStateException("Could not load d" + i + ": " + response.reason);
+            }
+        }
+        return data;
+    }
+
+    //must run before Main is loaded. defaults to the write-ahead log with interval fsync so the disk does not dominate
+    //the numbers, any jsondb.* property passed to the fork (-jvmArgsAppend -Djsondb.persistence=snapshot) wins
+    static void useTempDatabase() throws IOException {
+        Path dir = Files.createTempDirectory("jsondb-jmh");
+        Files.createDirectories(dir.resolve("src/server/data"));
+        System.setProperty("user.dir", dir.toString());
+        setDefault("jsondb.persistence", "wal");
+        setDefault("jsondb.wal.fsync", "interval");
+    }
+
+    private static void setDefault(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private JsonElement tree(int levels, int seed) {
+        if (levels == 0) {
+            return new JsonPrimitive("value-" + seed);
+        }
+        JsonObject node = new JsonObject();
+        for (int i = 0; i < fanOut; i++) {
+            node.add("f" + i, tree(levels - 1, seed * 31 + i));
+        }
+        return node;
+    }
+}
@@ -0,0 +1,166 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//end to end over loopback: the server runs in the benchmark's JVM on its usual port, requests go through a real
+//socket, the front end, the codec and Main. session* keep one connection per benchmark thread and wait for every
+//response before sending the next request, classicGet opens a connection per request like the command line client.
+//the threads front end serves at most 5 connections at a time, so keep -t below that for it
+//
+//  gradle jmh -Pjmh="LoopbackBenchmark -p frontend=nio -t 4"
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"threads", "nio"})
+        String frontend;
+
+        @Param({"1000"})
+        int documents;
+
+        @Param({"16", "1024"})
+        int fields;
+
+        @Param({"3"})
+        int depth;
+
+        BenchmarkDatabase data;
+        private Thread thread;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            System.setProperty("jsondb.frontend", frontend);
+            data = BenchmarkDatabase.load(documents, fields, depth);
+            thread = new Thread(() -> Main.main(new String[0]), "jsondb-server");
+            thread.setDaemon(true);
+            thread.start();
+            for (int attempt = 0; ; attempt++) { //wait until it answers
+                try {
+                    classic("{\"type\":\"get\",\"key\":\"d0\"}");
+                    return;
+                } catch (IOException e) {
+                    if (attempt == 100) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            classic("{\"type\":\"exit\"}");
+            thread.join(10_000);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private String[] gets;
+        private String[] sets;
+
+        @Setup(Level.Trial)
+        public void open(Server server) throws IOException {
+            socket = new Socket("localhost", Main.LISTENING_ON_PORT);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF("{\"type\":\"session\"}");
+            out.flush();
+            in.readUTF();
+
+            //encoded up front, the client side json work is not what is being measured
+            JsonArray[] keys = server.data.keys;
+            gets = new String[keys.length];
+            sets = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                gets[i] = request("get", keys[i], null);
+                sets[i] = request("set", keys[i], new JsonPrimitive(i));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        String roundTrip(String request) throws IOException {
+            out.writeUTF(request);
+            out.flush();
+            return in.readUTF();
+        }
+
+        int next() {
+            return ThreadLocalRandom.current().nextInt(gets.length);
+        }
+    }
+
+    @Benchmark
+    public String sessionGet(Connection connection) throws IOException {
+        return connection.roundTrip(connection.gets[connection.next()]);
+    }
+
+    @Benchmark
+    public String sessionSet(Connection connection) throws IOException {
+        return connection.roundTrip(connection.sets[connection.next()]);
+    }
+
+    @Benchmark
+    public String classicGet(Connection connection) throws IOException {
+        return classic(connection.gets[connection.next()]);
+    }
+
+    private static String classic(String request) throws IOException {
+        try (Socket socket = new Socket("localhost", Main.LISTENING_ON_PORT)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoLinger(true, 0); //no TIME_WAIT pile-up from thousands of short connections
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(request);
+            out.flush();
+            return new DataInputStream(socket.getInputStream()).readUTF();
+        }
+    }
+
+    private static String request(String type, JsonArray key, JsonPrimitive value) {
+        JsonObject request = new JsonObject();
+        request.addProperty("type", type);
+        request.add("key", key);
+        if (value != null) {
+            request.add("value", value);
+        }
+        return request.toString();
+    }
+}
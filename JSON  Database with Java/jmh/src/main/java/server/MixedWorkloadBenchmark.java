@@ -0,0 +1,60 @@
+package server;
+
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//gets and sets mixed at `readPercent` % reads, in-process. run it with -t to see how the mix scales across threads
+//
+//  gradle jmh -Pjmh="MixedWorkloadBenchmark -t 4 -p readPercent=90"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixedWorkloadBenchmark {
+
+    @Param({"1000"})
+    int documents;
+
+    @Param({"64"})
+    int fields;
+
+    @Param({"3"})
+    int depth;
+
+    @Param({"50", "90", "99"})
+    int readPercent;
+
+    private BenchmarkDatabase data;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        data = BenchmarkDatabase.load(documents, fields, depth);
+    }
+
+    @Benchmark
+    public SendResponse mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(data.keys.length);
+        if (random.nextInt(100) < readPercent) {
+            return Main.getFromFile(data.keys[i]);
+        }
+        return Main.setToFile(data.keys[i], new JsonPrimitive(i));
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//the single operations of server.Main in-process, no sockets and no json encoding of the request. every call goes
+//to a random leaf at full depth, so `depth` is also the length of the key path
+//
+//  gradle jmh -Pjmh="StoreBenchmark -p fields=1024 -p depth=1,5"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({"1000"})
+    int documents;
+
+    @Param({"16", "1024"})
+    int fields;
+
+    @Param({"1", "3", "5"})
+    int depth;
+
+    private BenchmarkDatabase data;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        data = BenchmarkDatabase.load(documents, fields, depth);
+    }
+
+    @Benchmark
+    public SendResponse get() {
+        return Main.getFromFile(data.keys[next()]);
+    }
+
+    @Benchmark
+    public SendResponse set() {
+        int i = next();
+        return Main.setToFile(data.keys[i], new JsonPrimitive(i));
+    }
+
+    //a delete on its own would empty the database within the first iteration, so the leaf is put back right away.
+    //subtract set to get the delete alone
+    @Benchmark
+    public SendResponse deleteThenSet() {
+        int i = next();
+        Main.deleteFromFile(data.keys[i]);
+        return Main.setToFile(data.keys[i], new JsonPrimitive(i));
+    }
+
+    //the lookup alone, on the documents as they were loaded
+    @Benchmark
+    public JsonElement traverse() {
+        int i = next();
+        return Main.traverse(data.documents[data.tops[i]], data.tails[i]);
+    }
+
+    private int next() {
+        return ThreadLocalRandom.current().nextInt(data.keys.length);
+    }
+}
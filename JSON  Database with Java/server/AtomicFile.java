@@ -0,0 +1,28 @@
+package server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+//replaces a file by writing next to it, fsyncing and renaming over it. a crash leaves the old or the new content,
+//never a truncated file, and whoever still has the old file open or mapped keeps reading the old content
+class AtomicFile {
+
+    interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    static void write(File file, Content content) throws IOException {
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            content.writeTo(out);
+            out.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,347 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+//db.bin: "JDB1", the dictionary, one entry per top-level key and a 0 byte at the end
+//
+//  dictionary = varint n, n strings (every object key, and every string value that occurs more than once)
+//  entry      = 1, key, int length, value
+//  value      = tag, payload (object keys and repeated strings are varint dictionary indexes)
+//
+//the length prefix lets a reader skip a top-level value without decoding it, and with the dictionary in hand any
+//value can be decoded on its own. strings are a varint byte length followed by utf-8
+class BinaryFormat implements StorageFormat {
+
+    static final byte[] MAGIC = {'J', 'D', 'B', '1'};
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INT = 3;     //zigzag varint
+    private static final int NUMBER = 4;  //anything that is not a long, kept as its decimal text
+    private static final int STRING = 5;
+    private static final int OBJECT = 6;  //varint n, n times (varint key index, value)
+    private static final int ARRAY = 7;   //varint n, n values
+    private static final int STRING_REF = 8; //varint dictionary index
+
+    @Override
+    public void read(File file, BiConsumer<String, JsonElement> entries) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                in.readFully(magic);
+            } catch (EOFException e) {
+                return; //empty file, empty database
+            }
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a binary database file");
+            }
+            String[] dictionary = new String[(int) readVarint(in)];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString(in);
+            }
+            byte[] block = new byte[0];
+            int marker;
+            while ((marker = in.read()) == 1) {
+                String key = readString(in);
+                int length = in.readInt();
+                if (block.length < length) {
+                    block = new byte[Math.max(length, block.length * 2)];
+                }
+                in.readFully(block, 0, length);
+                entries.accept(key, decode(ByteBuffer.wrap(block, 0, length), dictionary));
+            }
+            checkEnd(file, marker);
+        }
+    }
+
+    //the entries end with a 0 byte, a file that simply stops was cut off (a missing entry is not an empty database)
+    private static void checkEnd(File file, int marker) throws IOException {
+        if (marker < 0) {
+            throw new EOFException(file + " is truncated");
+        }
+        if (marker != 0) {
+            throw new IOException(file + " is corrupt, unexpected entry marker " + marker);
+        }
+    }
+
+    private static final long MAP_WINDOW = 1L << 30; //one MappedByteBuffer can not be larger than 2 GB
+
+    interface MappedEntries {
+        void accept(String key, ByteBuffer value, String[] dictionary);
+    }
+
+    //memory-maps the file and hands out every top-level value as an undecoded slice, only the entry headers are read
+    static void map(File file, MappedEntries values) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return;
+            }
+            long base = 0;
+            ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAP_WINDOW));
+            byte[] magic = new byte[MAGIC.length];
+            window.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a binary database file");
+            }
+            String[] dictionary = new String[(int) readVarint(window)];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString(window);
+            }
+            while (true) {
+                //an entry header is small, remap when the next one might not fit into the current window
+                if (window.remaining() < 64 * 1024 && base + window.limit() < size) {
+                    base += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, MAP_WINDOW));
+                }
+                int marker = window.hasRemaining() ? window.get() & 0xFF : -1;
+                if (marker != 1) {
+                    checkEnd(file, marker);
+                    return;
+                }
+                String key = readString(window);
+                int length = window.getInt();
+                if (length > window.remaining()) { //the value does not fit, start a new window with it
+                    base += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, Math.max(length, MAP_WINDOW)));
+                }
+                values.accept(key, window.slice(window.position(), length), dictionary);
+                window.position(window.position() + length);
+            }
+        }
+    }
+
+    @Override
+    public void write(JsonObject root, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        data.write(MAGIC);
+        Map<String, Integer> dictionary = dictionary(root);
+        writeVarint(data, dictionary.size());
+        for (String word : dictionary.keySet()) {
+            writeString(data, word);
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        DataOutputStream blockData = new DataOutputStream(block);
+        for (Map.Entry<String, JsonElement> entry : root.entrySet()) {
+            block.reset();
+            encode(entry.getValue(), dictionary, blockData);
+            data.write(1);
+            writeString(data, entry.getKey());
+            data.writeInt(block.size());
+            block.writeTo(data);
+        }
+        data.write(0);
+        data.flush();
+    }
+
+    @Override
+    public String fileName() {
+        return "db.bin";
+    }
+
+    //string -> index, one pass over the whole database before anything is written
+    private static Map<String, Integer> dictionary(JsonObject root) {
+        Map<String, Integer> keys = new LinkedHashMap<>();
+        Map<String, Integer> strings = new HashMap<>(); //string value -> times seen
+        for (JsonElement value : root.asMap().values()) {
+            collect(value, keys, strings);
+        }
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        keys.keySet().forEach(key -> dictionary.put(key, dictionary.size()));
+        strings.forEach((string, count) -> {
+            if (count > 1) {
+                dictionary.putIfAbsent(string, dictionary.size());
+            }
+        });
+        return dictionary;
+    }
+
+    private static void collect(JsonElement value, Map<String, Integer> keys, Map<String, Integer> strings) {
+        if (value.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : value.getAsJsonObject().entrySet()) {
+                keys.putIfAbsent(entry.getKey(), keys.size());
+                collect(entry.getValue(), keys, strings);
+            }
+        } else if (value.isJsonArray()) {
+            for (JsonElement element : value.getAsJsonArray()) {
+                collect(element, keys, strings);
+            }
+        } else if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()) {
+            strings.merge(value.getAsString(), 1, Integer::sum);
+        }
+    }
+
+    private static void encode(JsonElement value, Map<String, Integer> dictionary, DataOutputStream out) throws IOException {
+        if (value.isJsonNull()) {
+            out.write(NULL);
+        } else if (value.isJsonObject()) {
+            JsonObject object = value.getAsJsonObject();
+            out.write(OBJECT);
+            writeVarint(out, object.size());
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeVarint(out, dictionary.get(entry.getKey()));
+                encode(entry.getValue(), dictionary, out);
+            }
+        } else if (value.isJsonArray()) {
+            JsonArray array = value.getAsJsonArray();
+            out.write(ARRAY);
+            writeVarint(out, array.size());
+            for (JsonElement element : array) {
+                encode(element, dictionary, out);
+            }
+        } else {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.write(primitive.getAsBoolean() ? TRUE : FALSE);
+            } else if (primitive.isString()) {
+                Integer index = dictionary.get(primitive.getAsString());
+                if (index != null) {
+                    out.write(STRING_REF);
+                    writeVarint(out, index);
+                } else {
+                    out.write(STRING);
+                    writeString(out, primitive.getAsString());
+                }
+            } else {
+                String text = primitive.getAsString();
+                Long integral = asLong(text);
+                if (integral != null) {
+                    out.write(INT);
+                    writeVarint(out, (integral << 1) ^ (integral >> 63));
+                } else {
+                    out.write(NUMBER);
+                    writeString(out, text);
+                }
+            }
+        }
+    }
+
+    static JsonElement decode(ByteBuffer in, String[] dictionary) {
+        int tag = in.get();
+        switch (tag) {
+            case NULL:
+                return JsonNull.INSTANCE;
+            case FALSE:
+                return new JsonPrimitive(false);
+            case TRUE:
+                return new JsonPrimitive(true);
+            case INT: {
+                long zigzag = readVarint(in);
+                return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+            }
+            case NUMBER:
+                return new JsonPrimitive(new LazilyParsedNumber(readString(in)));
+            case STRING:
+                return new JsonPrimitive(readString(in));
+            case STRING_REF:
+                return new JsonPrimitive(dictionary[(int) readVarint(in)]);
+            case OBJECT: {
+                int size = (int) readVarint(in);
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < size; i++) {
+                    String key = dictionary[(int) readVarint(in)];
+                    object.add(key, decode(in, dictionary));
+                }
+                return object;
+            }
+            case ARRAY: {
+                int size = (int) readVarint(in);
+                JsonArray array = new JsonArray(size);
+                for (int i = 0; i < size; i++) {
+                    array.add(decode(in, dictionary));
+                }
+                return array;
+            }
+            default:
+                throw new IllegalStateException("Corrupt binary block, unknown tag " + tag);
+        }
+    }
+
+    //only plain integers become INT, "1.0" or "1e3" keep their exact text
+    private static Long asLong(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(i == 0 && c == '-' && text.length() > 1)) {
+                return null;
+            }
+        }
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return null; //too big for a long
+        }
+    }
+
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(in.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[(int) readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
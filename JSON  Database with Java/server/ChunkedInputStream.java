@@ -0,0 +1,104 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+//reads messages written by ChunkedOutputStream. read() returns -1 at the end of the current message,
+//nextMessage() moves on to the next one
+public class ChunkedInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final long maxMessage; //the peer decides the lengths, a server does not take messages of any size
+    private int remaining; //bytes left in the current chunk
+    private long messageLength; //of the current message so far
+    private boolean endOfMessage = true;
+
+    public ChunkedInputStream(InputStream in) {
+        this(in, Long.MAX_VALUE);
+    }
+
+    public ChunkedInputStream(InputStream in, long maxMessage) {
+        this.in = new DataInputStream(in);
+        this.maxMessage = maxMessage;
+    }
+
+    //blocks until the next message starts, throws EOFException when the peer closed the connection in between
+    public void nextMessage() throws IOException {
+        while (!endOfMessage) { //skip whatever the reader did not consume of the previous message
+            skip(Long.MAX_VALUE);
+        }
+        messageLength = 0;
+        readChunkLength();
+    }
+
+    private boolean fill() throws IOException {
+        while (remaining == 0) {
+            if (endOfMessage) {
+                return false;
+            }
+            readChunkLength();
+        }
+        return true;
+    }
+
+    private void readChunkLength() throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative chunk length " + length);
+        }
+        if (length > maxMessage - messageLength) {
+            throw new IOException("Message longer than " + maxMessage + " bytes");
+        }
+        messageLength += length;
+        remaining = length;
+        endOfMessage = length == 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Connection closed in the middle of a message");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = in.read(bytes, offset, Math.min(length, remaining));
+        if (n < 0) {
+            throw new EOFException("Connection closed in the middle of a message");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int step = (int) Math.min(n - skipped, remaining);
+            in.readFully(new byte[step]);
+            remaining -= step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
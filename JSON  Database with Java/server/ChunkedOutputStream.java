@@ -0,0 +1,86 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+//writes one message as a sequence of chunks: 4 byte length + bytes, closed by a chunk of length 0. the message
+//is streamed chunk by chunk, so neither side ever needs it as one String and there is no 64 KB limit like writeUTF
+public class ChunkedOutputStream extends OutputStream {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final byte[] buffer; //reused for every message on this connection
+    private int count;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this(out, CHUNK_SIZE);
+    }
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = new DataOutputStream(out);
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            int n = Math.min(length, buffer.length - count);
+            System.arraycopy(bytes, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    //bytes from a (possibly direct) buffer, copied through the chunk buffer so they never become a byte[] of their own
+    public void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            int n = Math.min(bytes.remaining(), buffer.length - count);
+            bytes.get(buffer, count, n);
+            count += n;
+        }
+    }
+
+    //ends the current message and pushes it onto the wire, the stream can be used for the next message afterwards
+    public void endMessage() throws IOException {
+        writeChunk();
+        out.writeInt(0);
+        out.flush();
+    }
+
+    private void writeChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        out.writeInt(count);
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+
+    @Override
+    public void flush() {
+        //chunks go out when they are full or the message ends, a mid-message flush from a Writer must not end it
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,175 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+//top-level values that are not on the heap as a JsonElement tree. with -Djsondb.storage=mmap the values of db.bin
+//stay in the memory-mapped file until they are first used, so startup only has to read the keys and data nobody asks
+//for never costs heap. Main moves such a value into db the first time it is read and drops it from here when it is
+//written. values above -Djsondb.offHeap.thresholdBytes live here for good as json bytes outside the heap
+class ColdStore {
+
+    interface Slot {
+        JsonElement load(); //a fresh tree every time, callers decide whether to keep it
+
+        default boolean promotable() { //whether a read may move the value into db
+            return true;
+        }
+
+        default ByteBuffer json() { //the value as utf-8 json, if it is stored that way
+            return null;
+        }
+    }
+
+    //a top-level value in db.bin, the slice stays valid after a new snapshot was renamed over the file. nothing
+    //writes into db.bin in place
+    private static class MappedSlot implements Slot {
+        private final ByteBuffer bytes;
+        private final String[] dictionary;
+
+        MappedSlot(ByteBuffer bytes, String[] dictionary) {
+            this.bytes = bytes;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public JsonElement load() {
+            return BinaryFormat.decode(bytes.duplicate(), dictionary); //duplicate, concurrent loads must not share a position
+        }
+    }
+
+    //a large value serialized into direct memory. the GC only sees one small ByteBuffer instead of a tree with an object
+    //per map entry and primitive, and a get can copy the bytes to the socket without parsing them
+    private static class OffHeapSlot implements Slot {
+        private final ByteBuffer bytes;
+
+        OffHeapSlot(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public JsonElement load() {
+            return JsonParser.parseString(StandardCharsets.UTF_8.decode(bytes.duplicate()).toString());
+        }
+
+        @Override
+        public boolean promotable() {
+            return false;
+        }
+
+        @Override
+        public ByteBuffer json() {
+            return bytes.asReadOnlyBuffer(); //own position and limit for every reader
+        }
+    }
+
+    private static final Gson gson = new Gson();
+
+    private final ConcurrentSkipListMap<String, Slot> slots = new ConcurrentSkipListMap<>();
+
+    static ColdStore map(File file) throws IOException {
+        ColdStore store = new ColdStore();
+        BinaryFormat.map(file, (key, bytes, dictionary) -> store.slots.put(key, new MappedSlot(bytes, dictionary)));
+        return store;
+    }
+
+    static Slot offHeap(JsonElement value) {
+        byte[] json = gson.toJson(value).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(json.length);
+        bytes.put(json).flip();
+        return new OffHeapSlot(bytes);
+    }
+
+    //rough size of the value as json, stops counting once it is clearly at least threshold bytes
+    static boolean isLarge(JsonElement value, long threshold) {
+        return estimate(value, threshold) >= threshold;
+    }
+
+    private static long estimate(JsonElement value, long threshold) {
+        if (value.isJsonObject()) {
+            long size = 2;
+            for (Map.Entry<String, JsonElement> entry : value.getAsJsonObject().entrySet()) {
+                size += entry.getKey().length() + 4 + estimate(entry.getValue(), threshold - size);
+                if (size >= threshold) {
+                    break;
+                }
+            }
+            return size;
+        }
+        if (value.isJsonArray()) {
+            long size = 2;
+            for (JsonElement element : value.getAsJsonArray()) {
+                size += 1 + estimate(element, threshold - size);
+                if (size >= threshold) {
+                    break;
+                }
+            }
+            return size;
+        }
+        return value.isJsonNull() ? 4 : value.getAsString().length() + 2;
+    }
+
+    Slot get(String key) {
+        return slots.get(key);
+    }
+
+    Slot put(String key, Slot slot) {
+        return slots.put(key, slot);
+    }
+
+    Slot remove(String key) {
+        return slots.remove(key);
+    }
+
+    boolean remove(String key, Slot slot) {
+        return slots.remove(key, slot);
+    }
+
+    NavigableSet<String> keys() {
+        return slots.navigableKeySet();
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    //the keys of both sorted sets in order, a key that is in both (mid-promotion) comes out once
+    static Iterator<String> merge(Iterator<String> a, Iterator<String> b) {
+        return new Iterator<>() {
+            String nextA = a.hasNext() ? a.next() : null;
+            String nextB = b.hasNext() ? b.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return nextA != null || nextB != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int order = nextA == null ? 1 : nextB == null ? -1 : nextA.compareTo(nextB);
+                String key = order <= 0 ? nextA : nextB;
+                if (order <= 0) {
+                    nextA = a.hasNext() ? a.next() : null;
+                }
+                if (order >= 0) {
+                    nextB = b.hasNext() ? b.next() : null;
+                }
+                return key;
+            }
+        };
+    }
+}
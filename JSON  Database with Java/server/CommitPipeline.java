@@ -0,0 +1,145 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//group commit: client threads only enqueue their mutation, one committer thread takes a batch of them, applies
+//them one after another (each under the lock of its own key), persists once and then answers everybody in the batch
+class CommitPipeline {
+
+    interface BatchPersist {
+        long persist() throws IOException; //runs once per batch after every mutation was applied
+    }
+
+    interface DurableWait {
+        void await(long seq) throws IOException; //blocks until everything up to seq is on disk
+    }
+
+    private static class PendingWrite {
+        final int[] stripes;
+        final Mutation mutation;
+        final String errorReason;
+        final CompletableFuture<SendResponse> result = new CompletableFuture<>();
+        SendResponse response;
+
+        PendingWrite(int[] stripes, Mutation mutation, String errorReason) {
+            this.stripes = stripes;
+            this.mutation = mutation;
+            this.errorReason = errorReason;
+        }
+    }
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final StripedLocks locks;
+    private final BatchPersist persist;
+    private final DurableWait durableWait;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final ServerMetrics metrics;
+
+    CommitPipeline(StripedLocks locks, BatchPersist persist, DurableWait durableWait,
+                   int batchSize, long lingerMs, ServerMetrics metrics) {
+        this.locks = locks;
+        this.persist = persist;
+        this.durableWait = durableWait;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.metrics = metrics;
+    }
+
+    void start() {
+        Thread committer = new Thread(this::run, "group-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    //blocks the calling client thread until its batch is durable
+    SendResponse submit(int[] stripes, Mutation mutation, String errorReason) {
+        PendingWrite write = new PendingWrite(stripes, mutation, errorReason);
+        queue.add(write);
+        return write.result.join();
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                batch.add(queue.take()); //sleep until there is at least one write
+                collect(batch);
+                commit(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) { //should not happen, commit() answers every write itself
+                e.printStackTrace();
+                for (PendingWrite write : batch) {
+                    write.result.complete(new SendResponse("ERROR", null, write.errorReason));
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    //fills the batch with whatever else is queued, waiting up to the linger time for stragglers
+    private void collect(List<PendingWrite> batch) throws InterruptedException {
+        queue.drainTo(batch, batchSize - batch.size());
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+            queue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        long seq = 0;
+        boolean persisted = false;
+        boolean changed = false;
+        for (PendingWrite write : batch) {
+            locks.lock(write.stripes, true);
+            try {
+                write.response = write.mutation.apply();
+                changed |= "OK".equals(write.response.response);
+            } catch (Exception e) {
+                e.printStackTrace();
+                write.response = new SendResponse("ERROR", null, write.errorReason);
+            } finally {
+                locks.unlock(write.stripes, true);
+            }
+        }
+        try {
+            if (changed) {
+                seq = persist.persist();
+            }
+            persisted = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (persisted) {
+            try {
+                durableWait.await(seq);
+            } catch (IOException e) {
+                e.printStackTrace();
+                persisted = false;
+            }
+        }
+
+        metrics.recordBatch(batch.size());
+        for (PendingWrite write : batch) {
+            boolean failed = !persisted && "OK".equals(write.response.response);
+            write.result.complete(failed ? new SendResponse("ERROR", null, write.errorReason) : write.response);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+//key paths that were set with a ttl and when they expire. the deadlines sit in a hierarchical timing wheel: 4 levels
+//of 64 slots, level 0 one slot per tick (-Djsondb.ttl.tickMs, default 100), each level above 64 times coarser. adding
+//or dropping a deadline is O(1), and every tick only looks at one slot per level. a deadline moves down a level when
+//its coarse slot comes up, at most 3 times, so expiring costs O(1) amortized however many keys there are and nothing
+//ever walks the database. deadlines beyond the top level (about 19 days at 100 ms) wait in its farthest slot and are
+//placed again when that comes up
+//
+//a set replaces everything below its path, so it drops the deadlines at and below the path and a delete does the same.
+//writes below a path that has a deadline leave it alone. the deadlines are kept as epoch millis, so they survive
+//restarts: they travel in the log records and are saved to expiries.json next to every snapshot
+class Expiries {
+
+    //one deadline, linked into the slot it waits in
+    static class Entry {
+        final JsonElement key;
+        final String path;
+        final long expiresAt;
+        private final long tick;
+        private Entry previous;
+        private Entry next;
+        private Entry[] slots; //the level it is linked into, null once it is due or dropped
+        private int slot;
+
+        private Entry(JsonElement key, String path, long expiresAt, long tick) {
+            this.key = key;
+            this.path = path;
+            this.expiresAt = expiresAt;
+            this.tick = tick;
+        }
+    }
+
+    private static final Gson gson = new Gson();
+    private static final char SEPARATOR = '\0';
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    private final long tickMs;
+    private final Entry[][] wheel = new Entry[LEVELS][SLOTS]; //heads of doubly linked lists, guarded by this
+    private final TreeMap<String, Entry> sorted = new TreeMap<>(); //by path, finds the deadlines below a path
+    private long currentTick; //every slot up to here has been handled, guarded by this
+    private volatile int count; //writes without a ttl skip the lock while nothing can expire
+    private long expired;
+    private long version; //bumped by every change, save() skips the file when nothing changed since the last one
+    private long savedVersion;
+
+    Expiries(long tickMs) {
+        this.tickMs = Math.max(1, tickMs);
+        this.currentTick = System.currentTimeMillis() / this.tickMs;
+    }
+
+    long tickMs() {
+        return tickMs;
+    }
+
+    //called for every set and delete that reaches the log, with its stripes locked. expiresAt is null for a delete and
+    //for a set without ttl
+    void update(JsonElement key, Long expiresAt) {
+        if (expiresAt == null && count == 0) {
+            return;
+        }
+        synchronized (this) {
+            String path = pathOf(key);
+            drop(sorted.remove(path));
+            Iterator<Entry> below = sorted.subMap(path + SEPARATOR, path + (char) (SEPARATOR + 1)).values().iterator();
+            while (below.hasNext()) {
+                drop(below.next());
+                below.remove();
+            }
+            if (expiresAt != null) {
+                Entry entry = new Entry(key, path, expiresAt, Math.floorDiv(expiresAt + tickMs - 1, tickMs));
+                sorted.put(path, entry);
+                schedule(entry);
+            }
+            count = sorted.size();
+            version++;
+        }
+    }
+
+    //the deadline of exactly this path, null when it has none
+    synchronized Long expiresAt(JsonElement key) {
+        Entry entry = count == 0 ? null : sorted.get(pathOf(key));
+        return entry == null ? null : entry.expiresAt;
+    }
+
+    //false when the path was set or deleted again since the entry came due
+    synchronized boolean isCurrent(Entry entry) {
+        return sorted.get(entry.path) == entry;
+    }
+
+    //turns the wheel up to now and returns what came due. the entries stay registered until their delete is logged
+    synchronized List<Entry> advance(long now) {
+        List<Entry> due = new ArrayList<>();
+        long target = now / tickMs;
+        while (currentTick < target) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) { //coarse slots first, they may move entries into ours
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    for (Entry entry : unlinkAll(level, (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)))) {
+                        if (entry.tick <= currentTick) {
+                            due.add(entry);
+                        } else {
+                            schedule(entry);
+                        }
+                    }
+                }
+            }
+            due.addAll(unlinkAll(0, (int) (currentTick & (SLOTS - 1))));
+        }
+        return due;
+    }
+
+    //puts entries whose delete failed back on the wheel for the next tick, unless they were set or deleted since
+    synchronized void retry(List<Entry> entries) {
+        for (Entry entry : entries) {
+            if (entry.slots == null && sorted.get(entry.path) == entry) {
+                schedule(entry);
+            }
+        }
+    }
+
+    //level 0 for the next 63 ticks, otherwise the finest level where the deadline is less than 64 slots ahead. that
+    //is never the current slot of its level, which has already been moved down
+    private void schedule(Entry entry) {
+        long tick = Math.max(entry.tick, currentTick + 1); //already due: the next tick
+        int level = 0;
+        while (level < LEVELS - 1 && (tick >>> (SLOT_BITS * level)) - (currentTick >>> (SLOT_BITS * level)) >= SLOTS) {
+            level++;
+        }
+        long now = currentTick >>> (SLOT_BITS * level);
+        long index = Math.min(tick >>> (SLOT_BITS * level), now + SLOTS - 1); //too far for the top level: park it
+        link(entry, wheel[level], (int) (index & (SLOTS - 1)));
+    }
+
+    private static void link(Entry entry, Entry[] slots, int slot) {
+        entry.slots = slots;
+        entry.slot = slot;
+        entry.previous = null;
+        entry.next = slots[slot];
+        if (entry.next != null) {
+            entry.next.previous = entry;
+        }
+        slots[slot] = entry;
+    }
+
+    private static void drop(Entry entry) {
+        if (entry == null || entry.slots == null) {
+            return; //not there, or already due
+        }
+        if (entry.previous == null) {
+            entry.slots[entry.slot] = entry.next;
+        } else {
+            entry.previous.next = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.previous = entry.previous;
+        }
+        entry.slots = null;
+        entry.previous = null;
+        entry.next = null;
+    }
+
+    private List<Entry> unlinkAll(int level, int slot) {
+        List<Entry> entries = new ArrayList<>();
+        Entry entry = wheel[level][slot];
+        wheel[level][slot] = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.slots = null;
+            entry.previous = null;
+            entry.next = null;
+            entries.add(entry);
+            entry = next;
+        }
+        return entries;
+    }
+
+    synchronized void recordExpired() {
+        expired++;
+    }
+
+    private static String pathOf(JsonElement key) {
+        return key.isJsonPrimitive() ? key.getAsString() : PathIndex.path(key.getAsJsonArray());
+    }
+
+    //reads expiries.json, a missing file means nothing expires. the log replayed after this brings it up to date
+    void load(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            for (JsonElement element : JsonParser.parseReader(in).getAsJsonArray()) {
+                JsonObject saved = element.getAsJsonObject();
+                update(saved.get("key"), saved.get("expiresAt").getAsLong());
+            }
+        }
+        synchronized (this) {
+            savedVersion = version;
+        }
+    }
+
+    //written next to a snapshot and after it was taken, so it is never older than the snapshot it goes with. records
+    //replayed on top of it set every path they touch back to what it was, keys that are gone by then expire as no-ops
+    void save(File file) throws IOException {
+        JsonArray entries = new JsonArray();
+        long saving;
+        synchronized (this) {
+            if (version == savedVersion && (file.exists() || sorted.isEmpty())) {
+                return;
+            }
+            saving = version;
+            for (Entry entry : sorted.values()) {
+                JsonObject saved = new JsonObject();
+                saved.add("key", entry.key);
+                saved.addProperty("expiresAt", entry.expiresAt);
+                entries.add(saved);
+            }
+        }
+        AtomicFile.write(file, out -> out.write(gson.toJson(entries).getBytes(StandardCharsets.UTF_8)));
+        synchronized (this) {
+            savedVersion = Math.max(savedVersion, saving);
+        }
+    }
+
+    synchronized JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("keys", sorted.size());
+        json.addProperty("expired", expired);
+        json.addProperty("tickMs", tickMs);
+        return json;
+    }
+}
@@ -0,0 +1,166 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+//follower side of replication: keeps a connection to the leader's ReplicationLog, installs its snapshot and applies
+//every shipped record through Main, reconnecting (and resuming where it was if the leader still has the records)
+//when the connection breaks. reads can wait for a sequence number, which is how read-your-writes works: a write on
+//the leader answers with its "seq" and a read sent here with "after":seq is only served once that seq is applied
+class Follower {
+
+    interface Applier {
+        void snapshot(JsonObject root) throws IOException; //replaces the whole database
+        void record(LogRecord record) throws IOException;
+    }
+
+    private static final Gson gson = new Gson();
+    private static final long ACK_EVERY_MS = 100;
+    private static final long RETRY_MS = 1000;
+    private static final int READ_TIMEOUT_MS = 5000; //the leader sends a heartbeat every 200 ms
+
+    private final String leader; //host:port of the leader's replication log
+    private final Applier applier;
+    private volatile String leaderId; //which leader our data came from, null until the first snapshot
+    private volatile long appliedSeq; //written by the replication thread only
+    private volatile long leaderSeq; //the highest sequence number the leader told us about
+    private volatile boolean connected;
+    private volatile long caughtUpAt; //last time appliedSeq reached leaderSeq
+    private final Object progress = new Object(); //notified whenever appliedSeq moves
+
+    Follower(String leader, Applier applier) {
+        this.leader = leader;
+        this.applier = applier;
+    }
+
+    String leader() {
+        return leader;
+    }
+
+    void start() {
+        Thread thread = new Thread(this::run, "follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        int colon = leader.lastIndexOf(':');
+        String host = leader.substring(0, colon);
+        int port = Integer.parseInt(leader.substring(colon + 1));
+        String lastError = null;
+        while (true) {
+            try (Socket socket = new Socket(host, port)) {
+                lastError = null;
+                follow(socket);
+            } catch (IOException | RuntimeException e) {
+                if (!e.toString().equals(lastError)) { //once, not every second while the leader is down
+                    System.err.println("Replication from " + leader + " interrupted: " + e);
+                    lastError = e.toString();
+                }
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        ChunkedInputStream input = new ChunkedInputStream(new BufferedInputStream(socket.getInputStream()));
+        ChunkedOutputStream output = new ChunkedOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+
+        JsonObject hello = new JsonObject();
+        hello.addProperty("leader", leaderId);
+        hello.addProperty("since", appliedSeq);
+        ReplicationLog.write(writer, output, hello);
+
+        JsonObject welcome = ReplicationLog.read(input);
+        long seq = welcome.get("seq").getAsLong();
+        if (welcome.has("snapshot")) {
+            applier.snapshot(welcome.getAsJsonObject("snapshot"));
+            System.out.println("Replicating from " + leader + ", snapshot at seq " + seq);
+        }
+        leaderId = welcome.get("leader").getAsString();
+        applied(seq, seq);
+        connected = true;
+
+        long lastAck = 0;
+        while (true) {
+            JsonObject message = ReplicationLog.read(input);
+            if (message.has("records")) {
+                for (JsonElement element : message.getAsJsonArray("records")) {
+                    LogRecord record = gson.fromJson(element, LogRecord.class);
+                    if (record.seq <= appliedSeq) {
+                        continue; //already have it
+                    }
+                    applier.record(record);
+                    applied(record.seq, Math.max(leaderSeq, record.seq));
+                }
+            } else {
+                applied(appliedSeq, Math.max(leaderSeq, message.get("seq").getAsLong()));
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastAck >= ACK_EVERY_MS) {
+                JsonObject ack = new JsonObject();
+                ack.addProperty("ack", appliedSeq);
+                ReplicationLog.write(writer, output, ack);
+                lastAck = now;
+            }
+        }
+    }
+
+    private void applied(long seq, long knownLeaderSeq) {
+        leaderSeq = knownLeaderSeq;
+        if (seq >= knownLeaderSeq) {
+            caughtUpAt = System.currentTimeMillis();
+        }
+        if (seq != appliedSeq) {
+            synchronized (progress) {
+                appliedSeq = seq;
+                progress.notifyAll();
+            }
+        }
+    }
+
+    //true once everything up to seq is applied, false when that did not happen within timeoutMs
+    boolean awaitApplied(long seq, long timeoutMs) throws InterruptedException {
+        if (appliedSeq >= seq) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (progress) {
+            long left;
+            while (appliedSeq < seq && (left = deadline - System.currentTimeMillis()) > 0) {
+                progress.wait(left);
+            }
+            return appliedSeq >= seq;
+        }
+    }
+
+    JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        long applied = appliedSeq;
+        long known = leaderSeq;
+        json.addProperty("role", "follower");
+        json.addProperty("leader", leader);
+        json.addProperty("connected", connected);
+        json.addProperty("appliedSeq", applied);
+        json.addProperty("leaderSeq", known);
+        json.addProperty("lagRecords", Math.max(0, known - applied));
+        //how stale our data can be: time since we last had everything the leader had told us about
+        json.addProperty("lagMs", connected && applied >= known ? 0
+                : caughtUpAt == 0 ? -1 : System.currentTimeMillis() - caughtUpAt);
+        return json;
+    }
+}
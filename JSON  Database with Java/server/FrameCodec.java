@@ -0,0 +1,136 @@
+package server;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//reads requests and writes responses for one blocking connection. starts with writeUTF framing, a session that
+//asks for "framing":"chunked" switches to ChunkedInputStream/ChunkedOutputStream and has no size limit.
+//notifications of the connection's watches are written by a thread of their own while the connection thread is
+//blocked reading the next request, writeResponse is synchronized so the two never interleave
+class FrameCodec {
+
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final JsonCodec json = new JsonCodec(); //buffers and JsonWriter for the whole connection
+    private byte[] frame = new byte[1024];
+    private ChunkedInputStream chunkedInput;
+    private ChunkedOutputStream chunkedOutput;
+    private Writer chunkedWriter;
+    private Reader chunkedChars;
+    private JsonWriter chunkedJson;
+    private Watches.Subscriber subscriber; //set by the connection thread before the writer thread starts
+    private PushWriter pushWriter;
+
+    FrameCodec(DataInputStream input, DataOutputStream output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    void useChunkedFraming() {
+        chunkedInput = new ChunkedInputStream(input, Main.MAX_MESSAGE);
+        chunkedOutput = new ChunkedOutputStream(output);
+        chunkedWriter = new BufferedWriter(new OutputStreamWriter(chunkedOutput, StandardCharsets.UTF_8));
+        //parsing straight from the socket so a request never exists as one String. it ends at the end of every
+        //message, the JsonReader on top has read everything it buffered once it found that end
+        chunkedChars = new InputStreamReader(chunkedInput, StandardCharsets.UTF_8);
+        chunkedJson = JsonCodec.newWriter(chunkedWriter);
+    }
+
+    //throws EOFException when the client hung up between two requests
+    ReceivedRequest readRequest() throws IOException {
+        if (chunkedInput == null) {
+            int length = input.readUnsignedShort();
+            if (frame.length < length) {
+                frame = new byte[Math.max(length, frame.length * 2)];
+            }
+            input.readFully(frame, 0, length);
+            return json.readUtf(frame, 0, length);
+        }
+        chunkedInput.nextMessage();
+        return JsonCodec.readMessage(JsonCodec.newReader(chunkedChars));
+    }
+
+    synchronized void writeResponse(SendResponse response) throws IOException {
+        long start = ServerMetrics.sample();
+        if (chunkedOutput == null) {
+            byte[] encoded = json.writeUtfFrame(response);
+            long written = start == 0 ? 0 : System.nanoTime();
+            Main.metrics.serialize.since(start);
+            output.write(encoded, 0, json.frameLength());
+            output.flush();
+            Main.metrics.socketWrite.since(written);
+            return;
+        }
+        if (response.rawValue != null) {
+            chunkedWriter.write("{\"value\":");
+            chunkedWriter.flush(); //into the chunk buffer, the raw bytes go right behind it
+            chunkedOutput.write(response.rawValue.duplicate());
+            JsonCodec.writeRest(response, chunkedWriter, chunkedJson);
+        } else {
+            JsonCodec.writeResponse(response, chunkedWriter, chunkedJson); //serialized chunk by chunk while it is written
+        }
+        chunkedWriter.flush();
+        chunkedOutput.endMessage();
+        Main.metrics.socketWrite.since(start); //serialized while it is written, the two can not be told apart
+    }
+
+    //created by the first watch of the session
+    Watches.Subscriber subscriber() {
+        if (subscriber == null) {
+            pushWriter = new PushWriter();
+            subscriber = Main.watches.subscribe(pushWriter);
+            pushWriter.start();
+        }
+        return subscriber;
+    }
+
+    void closeSubscriber() {
+        if (subscriber != null) {
+            Main.watches.close(subscriber);
+            pushWriter.thread.interrupt();
+        }
+    }
+
+    //hands notifications to a writer thread, ready again once that thread has written all of them
+    private class PushWriter implements Watches.Sink {
+        private final BlockingQueue<SendResponse> queue = new LinkedBlockingQueue<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final Thread thread = new Thread(this::run, "watch-writer");
+
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public boolean ready() {
+            return outstanding.get() == 0;
+        }
+
+        @Override
+        public void push(SendResponse notification) {
+            outstanding.incrementAndGet();
+            queue.add(notification);
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    writeResponse(queue.take());
+                    if (outstanding.decrementAndGet() == 0) {
+                        subscriber.ready();
+                    }
+                }
+            } catch (IOException e) {
+                Main.watches.close(subscriber); //the connection thread finds out on its next read
+            } catch (InterruptedException e) {
+                //connection closed
+            }
+        }
+    }
+}
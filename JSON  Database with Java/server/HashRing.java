@@ -0,0 +1,74 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//consistent hashing of top-level keys onto shards ("host:port" names). every shard owns POINTS spots on a 64 bit ring
+//and a key belongs to the first spot at or after its hash, so adding or removing a shard only moves the keys of the
+//spots it gains or loses (about 1/N of them) instead of rehashing everything. the hash has to come out the same in
+//every process, so it is FNV-1a over the UTF-8 bytes and not String.hashCode(). public like ChunkedInputStream, the
+//client routes with the same ring the servers check against
+public class HashRing {
+
+    private static final int POINTS = 128; //per shard, enough to keep the shares within a few % of each other
+
+    private final List<String> shards;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(List<String> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one shard");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (String shard : shards) {
+            for (int i = 0; i < POINTS; i++) {
+                ring.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+    //"127.0.0.1:15000,127.0.0.1:15001"
+    public static HashRing parse(String shardList) {
+        List<String> shards = new ArrayList<>();
+        for (String shard : shardList.split(",")) {
+            String trimmed = shard.trim();
+            int colon = trimmed.lastIndexOf(':');
+            if (colon <= 0 || colon == trimmed.length() - 1) {
+                throw new IllegalArgumentException("Shards are host:port, not '" + shard + "'");
+            }
+            Integer.parseInt(trimmed.substring(colon + 1)); //NumberFormatException is an IllegalArgumentException
+            if (!shards.contains(trimmed)) {
+                shards.add(trimmed);
+            }
+        }
+        return new HashRing(shards);
+    }
+
+    public String shardOf(String topKey) {
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(topKey));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue(); //past the last spot wraps around
+    }
+
+    public List<String> shards() {
+        return shards;
+    }
+
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        //FNV alone leaves similar strings ("a#1", "a#2") close together, the murmur finalizer spreads them out
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
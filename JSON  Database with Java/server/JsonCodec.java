@@ -0,0 +1,504 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UTFDataFormatException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+//hand-written ReceivedRequest/SendResponse (de)serialization straight on JsonReader and JsonWriter, no reflection
+//and no JsonElement tree besides the key and value the request carries. one instance per connection: the writer and
+//every buffer live as long as the connection, so a request costs the ReceivedRequest, its JsonElements, a JsonReader
+//(see readMessage) and the response bytes and nothing else. the output is the same as gson.toJson(response) (nulls left out, html safe)
+class JsonCodec {
+
+    private final MessageReader message = new MessageReader();
+    private char[] chars = new char[1024];
+
+    private final CharsWriter text = new CharsWriter();
+    private final JsonWriter writer = newWriter(text);
+    private byte[] bytes = new byte[1024];
+    private int frameLength;
+
+    //the message must hold exactly one request
+    ReceivedRequest readUtf(byte[] frame, int offset, int length) throws IOException {
+        chars = ensure(chars, length);
+        return read(decodeModifiedUtf8(frame, offset, length, chars));
+    }
+
+    ReceivedRequest readUtf8(byte[] utf8, int offset, int length) throws IOException {
+        chars = ensure(chars, length);
+        return read(decodeUtf8(utf8, offset, length, chars));
+    }
+
+    private ReceivedRequest read(int length) throws IOException {
+        message.reset(chars, length);
+        return readMessage(newReader(message));
+    }
+
+    //the one request of a message, anything behind it is an error and not the next request. making sure of that reads
+    //to the end of the message, after which a JsonReader only ever answers END_DOCUMENT, so every message needs a
+    //reader of its own
+    static ReceivedRequest readMessage(JsonReader in) throws IOException {
+        try {
+            ReceivedRequest request = readRequest(in);
+            if (in.peek() != JsonToken.END_DOCUMENT) {
+                throw new IOException("Malformed request: more than one value in the message");
+            }
+            return request;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed request: " + e.getMessage(), e);
+        }
+    }
+
+    //the response as a writeUTF frame (unsigned short length + modified utf-8) in the returned buffer, valid until
+    //the next call. frameLength() says how much of it is used
+    byte[] writeUtfFrame(SendResponse response) throws IOException {
+        text.reset();
+        writeResponse(response, text, writer);
+        bytes = ensure(bytes, 2 + text.size() * 3);
+        int length = encodeModifiedUtf8(text.chars(), text.size(), bytes, 2);
+        if (length > 0xFFFF) {
+            throw new UTFDataFormatException("Response too long for writeUTF framing: " + length + " bytes");
+        }
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+        frameLength = 2 + length;
+        return bytes;
+    }
+
+    int frameLength() {
+        return frameLength;
+    }
+
+    //the response as utf-8 in the returned buffer, valid until the next call. with afterValue only the part behind a
+    //raw value the caller writes itself, see writeRest
+    byte[] writeUtf8(SendResponse response, boolean afterValue) throws IOException {
+        text.reset();
+        if (afterValue) {
+            writeRest(response, text, writer);
+        } else {
+            writeResponse(response, text, writer);
+        }
+        bytes = ensure(bytes, text.size() * 3);
+        frameLength = encodeUtf8(text.chars(), text.size(), bytes, 0);
+        return bytes;
+    }
+
+    //a JsonReader over one message. lenient like gson.fromJson
+    static JsonReader newReader(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        return reader;
+    }
+
+    //top-level values written one after the other without separators, writeResponse writes the punctuation
+    //of the response object itself and uses the JsonWriter for the values
+    static JsonWriter newWriter(Writer out) {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setLenient(true);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    static ReceivedRequest readRequest(JsonReader in) throws IOException {
+        ReceivedRequest request = new ReceivedRequest(null, null, null);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "type" -> request.type = string(in);
+                case "key" -> request.key = element(in);
+                case "value" -> request.value = element(in);
+                case "id" -> request.id = element(in);
+                case "requests" -> request.requests = requests(in);
+                case "expected" -> request.expected = element(in);
+                case "field" -> request.field = element(in);
+                case "kind" -> request.kind = string(in);
+                case "from" -> request.from = element(in);
+                case "to" -> request.to = element(in);
+                case "limit" -> request.limit = integer(in);
+                case "start" -> request.start = string(in);
+                case "prefix" -> request.prefix = string(in);
+                case "cursor" -> request.cursor = string(in);
+                case "after" -> request.after = longValue(in);
+                case "ttlMs" -> request.ttlMs = longValue(in);
+                case "framing" -> request.framing = string(in);
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        return request;
+    }
+
+    private static String string(JsonReader in) throws IOException {
+        return switch (in.peek()) {
+            case NULL -> {
+                in.nextNull();
+                yield null;
+            }
+            case BOOLEAN -> Boolean.toString(in.nextBoolean());
+            default -> in.nextString(); //numbers too, like gson does for String fields
+        };
+    }
+
+    private static Integer integer(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextInt();
+    }
+
+    private static Long longValue(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextLong();
+    }
+
+    private static JsonElement element(JsonReader in) throws IOException {
+        try {
+            return JsonParser.parseReader(in); //null becomes JsonNull, the same as the reflective binding
+        } catch (JsonParseException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause(); //a closed connection has to stay an EOFException
+            }
+            throw e;
+        }
+    }
+
+    private static List<ReceivedRequest> requests(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<ReceivedRequest> requests = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                requests.add(null);
+            } else {
+                requests.add(readRequest(in));
+            }
+        }
+        in.endArray();
+        return requests;
+    }
+
+    //fields in declaration order and without nulls, like gson. a raw value is decoded into the output
+    static void writeResponse(SendResponse response, Writer out, JsonWriter json) throws IOException {
+        out.write('{');
+        boolean first = true;
+        if (response.rawValue != null) {
+            out.write("\"value\":");
+            CharBuffer raw = StandardCharsets.UTF_8.decode(response.rawValue.duplicate());
+            out.write(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+            first = false;
+        }
+        writeFields(response, out, json, first);
+    }
+
+    //everything behind a raw value written by the caller as {"value":<raw>, i.e. from the comma to the closing brace
+    static void writeRest(SendResponse response, Writer out, JsonWriter json) throws IOException {
+        writeFields(response, out, json, false);
+    }
+
+    private static void writeFields(SendResponse response, Writer out, JsonWriter json, boolean first) throws IOException {
+        if (response.response != null) {
+            first = name(out, "response", first);
+            json.value(response.response);
+        }
+        if (response.rawValue == null && response.value != null && !response.value.isJsonNull()) {
+            first = name(out, "value", first);
+            writeElement(json, response.value);
+        }
+        if (response.reason != null) {
+            first = name(out, "reason", first);
+            json.value(response.reason);
+        }
+        if (response.id != null && !response.id.isJsonNull()) {
+            first = name(out, "id", first);
+            writeElement(json, response.id);
+        }
+        if (response.results != null) {
+            first = name(out, "results", first);
+            out.write('[');
+            for (int i = 0; i < response.results.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                SendResponse result = response.results.get(i);
+                if (result == null) {
+                    out.write("null");
+                } else {
+                    writeResponse(result, out, json);
+                }
+            }
+            out.write(']');
+        }
+        if (response.cursor != null) {
+            first = name(out, "cursor", first);
+            json.value(response.cursor);
+        }
+        if (response.watch != null && !response.watch.isJsonNull()) {
+            first = name(out, "watch", first);
+            writeElement(json, response.watch);
+        }
+        if (response.key != null) {
+            first = name(out, "key", first);
+            writeElement(json, response.key);
+        }
+        if (response.deleted != null) {
+            first = name(out, "deleted", first);
+            json.value(response.deleted);
+        }
+        if (response.seq != null) {
+            name(out, "seq", first);
+            json.value(response.seq);
+        }
+        out.write('}');
+    }
+
+    //field names are constants without anything to escape
+    private static boolean name(Writer out, String name, boolean first) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        out.write('"');
+        out.write(name);
+        out.write("\":");
+        return false;
+    }
+
+    //the same as gson's JsonElement adapter: object members that are null are left out, nulls in arrays are kept
+    static void writeElement(JsonWriter json, JsonElement element) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            json.nullValue();
+        } else if (element.isJsonObject()) {
+            json.beginObject();
+            for (Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+                json.name(member.getKey());
+                writeElement(json, member.getValue());
+            }
+            json.endObject();
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            json.beginArray();
+            for (JsonElement item : array) {
+                writeElement(json, item);
+            }
+            json.endArray();
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isNumber()) {
+                json.value(primitive.getAsNumber());
+            } else if (primitive.isBoolean()) {
+                json.value(primitive.getAsBoolean());
+            } else {
+                json.value(primitive.getAsString());
+            }
+        }
+    }
+
+    //what DataInputStream.readUTF does, without the String
+    static int decodeModifiedUtf8(byte[] in, int offset, int length, char[] out) throws UTFDataFormatException {
+        int n = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int b = in[i] & 0xFF;
+            if (b < 0x80) {
+                out[n++] = (char) b;
+                i++;
+            } else if ((b & 0xE0) == 0xC0 && i + 1 < end && (in[i + 1] & 0xC0) == 0x80) {
+                out[n++] = (char) (((b & 0x1F) << 6) | (in[i + 1] & 0x3F));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0 && i + 2 < end && (in[i + 1] & 0xC0) == 0x80 && (in[i + 2] & 0xC0) == 0x80) {
+                out[n++] = (char) (((b & 0x0F) << 12) | ((in[i + 1] & 0x3F) << 6) | (in[i + 2] & 0x3F));
+                i += 3;
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + (i - offset));
+            }
+        }
+        return n;
+    }
+
+    //what DataOutputStream.writeUTF does (\0 and surrogates as 2 and 3 byte sequences), out needs 3 bytes per char
+    static int encodeModifiedUtf8(char[] in, int length, byte[] out, int offset) {
+        int n = offset;
+        for (int i = 0; i < length; i++) {
+            char c = in[i];
+            if (c >= 0x0001 && c <= 0x007F) {
+                out[n++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                out[n++] = (byte) (0xC0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                out[n++] = (byte) (0xE0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return n - offset;
+    }
+
+    //standard utf-8, malformed sequences become U+FFFD like new String(bytes, UTF_8) does
+    static int decodeUtf8(byte[] in, int offset, int length, char[] out) {
+        int n = 0;
+        int end = offset + length;
+        for (int i = offset; i < end; ) {
+            int b = in[i] & 0xFF;
+            if (b < 0x80) {
+                out[n++] = (char) b;
+                i++;
+            } else if ((b & 0xE0) == 0xC0 && b >= 0xC2 && i + 1 < end && (in[i + 1] & 0xC0) == 0x80) {
+                out[n++] = (char) (((b & 0x1F) << 6) | (in[i + 1] & 0x3F));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0 && i + 2 < end && (in[i + 1] & 0xC0) == 0x80 && (in[i + 2] & 0xC0) == 0x80) {
+                out[n++] = (char) (((b & 0x0F) << 12) | ((in[i + 1] & 0x3F) << 6) | (in[i + 2] & 0x3F));
+                i += 3;
+            } else if ((b & 0xF8) == 0xF0 && i + 3 < end && (in[i + 1] & 0xC0) == 0x80 && (in[i + 2] & 0xC0) == 0x80
+                    && (in[i + 3] & 0xC0) == 0x80) {
+                int codePoint = ((b & 0x07) << 18) | ((in[i + 1] & 0x3F) << 12) | ((in[i + 2] & 0x3F) << 6) | (in[i + 3] & 0x3F);
+                out[n++] = Character.highSurrogate(codePoint);
+                out[n++] = Character.lowSurrogate(codePoint);
+                i += 4;
+            } else {
+                out[n++] = '\uFFFD';
+                i++;
+            }
+        }
+        return n;
+    }
+
+    //out needs 3 bytes per char, a surrogate pair takes 4 for its 2 chars
+    static int encodeUtf8(char[] in, int length, byte[] out, int offset) {
+        int n = offset;
+        for (int i = 0; i < length; i++) {
+            char c = in[i];
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(in[i + 1])) {
+                int codePoint = Character.toCodePoint(c, in[++i]);
+                out[n++] = (byte) (0xF0 | (codePoint >> 18));
+                out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out[n++] = '?'; //unpaired, the same replacement String.getBytes uses
+            } else {
+                out[n++] = (byte) (0xE0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return n - offset;
+    }
+
+    private static char[] ensure(char[] buffer, int size) {
+        return buffer.length >= size ? buffer : new char[Math.max(size, buffer.length * 2)];
+    }
+
+    private static byte[] ensure(byte[] buffer, int size) {
+        return buffer.length >= size ? buffer : new byte[Math.max(size, buffer.length * 2)];
+    }
+
+    //the chars of the current message, -1 at its end. reset() hands it the next one, the JsonReader on top of it
+    //never notices that the messages were separate
+    private static class MessageReader extends Reader {
+        private char[] chars = new char[0];
+        private int position;
+        private int limit;
+
+        void reset(char[] chars, int limit) {
+            this.chars = chars;
+            this.position = 0;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == limit) {
+                return -1;
+            }
+            int n = Math.min(length, limit - position);
+            System.arraycopy(chars, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    //a StringWriter without the StringBuffer synchronization and without building a String at the end
+    private static class CharsWriter extends Writer {
+        private char[] chars = new char[1024];
+        private int size;
+
+        @Override
+        public void write(int c) {
+            if (size == chars.length) {
+                chars = Arrays.copyOf(chars, size * 2);
+            }
+            chars[size++] = (char) c;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            ensure(length);
+            System.arraycopy(buffer, offset, chars, size, length);
+            size += length;
+        }
+
+        @Override
+        public void write(String text, int offset, int length) {
+            ensure(length);
+            text.getChars(offset, offset + length, chars, size);
+            size += length;
+        }
+
+        private void ensure(int more) {
+            if (size + more > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(size + more, chars.length * 2));
+            }
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        char[] chars() {
+            return chars;
+        }
+
+        int size() {
+            return size;
+        }
+
+        @Override
+        public void flush() { }
+
+        @Override
+        public void close() { }
+    }
+}
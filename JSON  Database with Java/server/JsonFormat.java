@@ -0,0 +1,52 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiConsumer;
+
+//the original db.json, a single JSON object
+class JsonFormat implements StorageFormat {
+
+    private static final Gson gson = new Gson();
+
+    @Override
+    public void read(File file, BiConsumer<String, JsonElement> entries) throws IOException {
+        if (file.length() == 0) {
+            return; //blank file, start with an empty database
+        }
+        try (JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 64 * 1024))) {
+            if (reader.peek() == JsonToken.END_DOCUMENT) {
+                return;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                entries.accept(key, JsonParser.parseReader(reader));
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new IOException(file + " has more after the database object");
+            }
+        }
+    }
+
+    @Override
+    public void write(JsonObject root, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+        gson.toJson(root, writer);
+        writer.flush();
+    }
+
+    @Override
+    public String fileName() {
+        return "db.json";
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//a latency histogram any thread can record into. log-linear buckets like HdrHistogram but coarser (16 per power of
+//two, a value is reported within about 6%), so the whole thing is a few KB and recording is one atomic increment,
+//one LongAdder add and a max check that almost never has to write
+class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * HALF + HALF);
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    //start is what ServerMetrics.now() returned, 0 when timing is switched off
+    void since(long start) {
+        if (start != 0) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(index(nanos));
+        totalNanos.add(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    //a consistent enough view: buckets recorded while this runs may or may not be in it
+    JsonObject toJson() {
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long maxNanos = max.get();
+        JsonObject json = new JsonObject();
+        json.addProperty("count", count);
+        json.addProperty("meanUs", count == 0 ? 0 : totalNanos.sum() / 1e3 / count);
+        json.addProperty("p50Us", percentile(snapshot, count, 50, maxNanos) / 1e3);
+        json.addProperty("p90Us", percentile(snapshot, count, 90, maxNanos) / 1e3);
+        json.addProperty("p99Us", percentile(snapshot, count, 99, maxNanos) / 1e3);
+        json.addProperty("p999Us", percentile(snapshot, count, 99.9, maxNanos) / 1e3);
+        json.addProperty("maxUs", maxNanos / 1e3);
+        return json;
+    }
+
+    private static long percentile(long[] counts, long total, double percentile, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long mantissa = index - (long) shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,22 @@
+package server;
+
+import com.google.gson.JsonElement;
+
+import java.util.List;
+
+//one line of the write-ahead log, also what the replication log ships and what a batch is staged as
+class LogRecord {
+    long seq;
+    String op;
+    JsonElement key;
+    JsonElement value;
+    List<LogRecord> ops; //only for "batch" records
+    Long expiresAt; //only for sets with a ttl, epoch millis, see Expiries
+
+    public LogRecord(long seq, String op, JsonElement key, JsonElement value) {
+        this.seq = seq;
+        this.op = op;
+        this.key = key;
+        this.value = value;
+    }
+}
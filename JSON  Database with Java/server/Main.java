@@ -2,47 +2,245 @@ package server;
 import com.google.gson.*;
 
 import java.io.*;
+import java.math.BigDecimal;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.net.Socket;
-import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 
 public class Main {
 
-    public static final int LISTENING_ON_PORT = 15000;
-    static final String filePath = System.getProperty("user.dir") + "/src/server/data/db.json";
+    //-Djsondb.port and -Djsondb.dataDir let several servers run side by side, e.g. the shards of one database
+    public static final int LISTENING_ON_PORT = Integer.getInteger("jsondb.port", 15000);
+    static final String DATA_DIR = System.getProperty("jsondb.dataDir", System.getProperty("user.dir") + "/src/server/data");
+    //"json" keeps db.json, "binary" uses the smaller and faster to load db.bin, see BinaryFormat
+    static final StorageFormat format = StorageFormat.named(System.getProperty("jsondb.format", "json"));
+    static final String filePath = DATA_DIR + "/" + format.fileName();
     static final File file = new File (filePath);
-    private static JsonObject db = new JsonObject();
+    static final File logFile = new File(DATA_DIR + "/db.log");
+    //top-level keys live in a concurrent map so that writers of different keys can add and remove entries in parallel.
+    //the values are never modified once they are in the map: a write copies the objects along its path and swaps the
+    //new top-level value in (the rest of the tree is shared), so readers need no lock at all and only writers of the
+    //same stripe wait for each other
+    private static final ConcurrentSkipListMap<String, JsonElement> db = new ConcurrentSkipListMap<>();
+    private static final KeySpace live = new KeySpace() { //db itself, as seen by single-key writes
+        public JsonElement get(String key) {
+            return topValue(key, true);
+        }
+
+        public void put(String key, JsonElement value) {
+            JsonElement before;
+            ColdStore.Slot slot;
+            boolean offHeap = value != null && OFF_HEAP_THRESHOLD > 0 && ColdStore.isLarge(value, OFF_HEAP_THRESHOLD);
+            if (offHeap) {
+                slot = cold.put(key, ColdStore.offHeap(value));
+                before = db.remove(key); //after the put, so readers always find one of the two
+            } else {
+                before = value == null ? db.remove(key) : db.put(key, value);
+                slot = cold == null ? null : cold.remove(key); //after the put, so readers always find one
+            }
+            if (pathIndex != null) { //only covers values on the heap, an index entry would pin an off-heap tree
+                pathIndex.update(key, before, offHeap ? null : value);
+            }
+            if (before == null && slot != null && !secondaryIndexes.isEmpty()) {
+                before = slot.load(); //the index still holds entries of the value that was never on the heap
+            }
+            secondaryIndexes.update(key, before, value);
+        }
+    };
+    //-Djsondb.pathIndex=true turns nested gets into one hash lookup, costs one map entry per nested node
+    private static final PathIndex pathIndex = Boolean.getBoolean("jsondb.pathIndex") ? new PathIndex() : null;
+    private static final SecondaryIndexes secondaryIndexes =
+            new SecondaryIndexes(new File(DATA_DIR + "/indexes.json"));
+    //-Djsondb.storage=mmap (binary format only) maps db.bin and leaves the values there until first use
+    static final String STORAGE = System.getProperty("jsondb.storage", "heap");
+    //values whose json is at least this big are kept off-heap, 0 keeps everything on the heap
+    static final long OFF_HEAP_THRESHOLD = Long.getLong("jsondb.offHeap.thresholdBytes", 0);
+    private static ColdStore cold; //null unless STORAGE is "mmap" or OFF_HEAP_THRESHOLD is set
     static final Gson gson = new Gson();
-    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+    static final ServerMetrics metrics = new ServerMetrics(); //before everything that records into it
+    private static final StripedLocks locks =
+            new StripedLocks(Integer.getInteger("jsondb.lockStripes", 64), metrics.lockWait);
     private static volatile boolean running = true;
+    //"threads" is the classic blocking accept loop with a pool of 5, "nio" is a selector event loop with a worker pool
+    static final String FRONTEND = System.getProperty("jsondb.frontend", "threads");
+    //the largest chunked request either front end takes, the chunk lengths come from the client
+    static final int MAX_MESSAGE = Integer.getInteger("jsondb.maxMessageBytes", 256 * 1024 * 1024);
+
+    //"snapshot" rewrites the whole db.json on every write, "wal" appends each mutation to db.log instead
+    static final String PERSISTENCE = System.getProperty("jsondb.persistence", "snapshot");
+    private static WriteAheadLog wal; //null unless PERSISTENCE is "wal"
+    private static SnapshotCompactor compactor;
+
+    //"direct" persists every write on its own, "group" hands writes to a single committer that persists them in batches
+    static final String COMMIT_MODE = System.getProperty("jsondb.commit.mode", "direct");
+    private static CommitPipeline pipeline; //null unless COMMIT_MODE is "group"
+    private static final SnapshotPersister snapshotPersister = new SnapshotPersister(Main::writeDbFile);
+    //sharded deployment: -Djsondb.shards lists every shard as host:port and -Djsondb.shard says which one this is
+    //(default 127.0.0.1:<port>). requests for top-level keys another shard owns are refused instead of quietly
+    //splitting the data. routing itself is up to the client, see client.ShardRouter
+    private static final HashRing shards = System.getProperty("jsondb.shards") == null ? null
+            : HashRing.parse(System.getProperty("jsondb.shards"));
+    private static final String SHARD = System.getProperty("jsondb.shard", "127.0.0.1:" + LISTENING_ON_PORT);
+    //replication: -Djsondb.replication.port makes this server ship every mutation to the followers that connect there,
+    //-Djsondb.replicaOf=host:port (the leader's replication port) makes it a read-only follower of that leader.
+    //jsondb.replica.reads=readYourWrites (default) lets a read with "after":seq wait up to jsondb.replica.waitMs for
+    //that write to arrive, "eventual" ignores "after" and answers from whatever has been applied
+    private static final ReplicationLog replication = Integer.getInteger("jsondb.replication.port") == null ? null
+            : new ReplicationLog(Integer.getInteger("jsondb.replication.port"),
+                    Integer.getInteger("jsondb.replication.backlog", 100_000), Main::replicationSnapshot);
+    private static final Follower follower = System.getProperty("jsondb.replicaOf") == null ? null
+            : new Follower(System.getProperty("jsondb.replicaOf"), new Follower.Applier() {
+                public void snapshot(JsonObject root) throws IOException {
+                    installSnapshot(root);
+                }
+
+                public void record(LogRecord record) throws IOException {
+                    applyReplicated(record);
+                }
+            });
+    static final String REPLICA_READS = System.getProperty("jsondb.replica.reads", "readYourWrites");
+    static final long REPLICA_WAIT_MS = Long.getLong("jsondb.replica.waitMs", 1000);
+    private static final Set<String> WRITES = Set.of("set", "delete", "cas", "incr", "mset", "mdelete", "transaction");
+    private static final String KEY_SHAPE = "Key must be a key name or a path of key names without \\u0000";
+    private static final int MAX_DIGITS = 1000; //incr operands, see addable
+    //serialized get results of hot paths, -Djsondb.cache.maxEntries=0 (default) turns it off
+    private static final ResponseCache responseCache = Integer.getInteger("jsondb.cache.maxEntries", 0) > 0
+            ? new ResponseCache(Integer.getInteger("jsondb.cache.maxEntries", 0),
+                    Long.getLong("jsondb.cache.maxBytes", 64L * 1024 * 1024), metrics)
+            : null;
+    //sessions watching key paths, see Watches
+    static final Watches watches = new Watches(Main::watchedValue);
+    //deadlines of keys set with "ttlMs", the expirer thread deletes them when they are due
+    private static final Expiries expiries = new Expiries(Long.getLong("jsondb.ttl.tickMs", 100));
+    static final File expiriesFile = new File(DATA_DIR + "/expiries.json");
 
 
     //static block to make sure that we always start with a valid json object
     static {
+        if ("mmap".equals(STORAGE) && !(format instanceof BinaryFormat)) {
+            throw new IllegalStateException("jsondb.storage=mmap needs jsondb.format=binary");
+        }
+        if (shards != null && !shards.shards().contains(SHARD)) {
+            throw new IllegalStateException("jsondb.shard " + SHARD + " is not one of jsondb.shards " + shards.shards());
+        }
+        new File(DATA_DIR).mkdirs();
         try {
             if (!file.exists()) {
-                file.createNewFile(); //create empty file
-                Files.writeString(file.toPath(), "{}"); //initialize with empty Json object
-            }
-            String content = Files.readString(file.toPath()).trim(); //read file
-            db = content.isBlank() //if db.Json is blank after trim,
-                    ? new JsonObject() //start again with db = new Json object in memory
-                    : JsonParser.parseString(content).getAsJsonObject(); //otherwise parse content as json and convert it
-            // to json object, assigning the result to static db
+                try (OutputStream out = new FileOutputStream(file)) {
+                    format.write(new JsonObject(), out); //initialize with an empty database
+                }
+            }
+            if ("mmap".equals(STORAGE)) {
+                cold = ColdStore.map(file); //only the keys are read, values are decoded on first access
+            } else {
+                if (OFF_HEAP_THRESHOLD > 0) {
+                    cold = new ColdStore();
+                }
+                format.read(file, live::put); //streams the top-level keys in one by one
+            }
         } catch (IOException e) {
-            db = new JsonObject(); // fallback
+            //no starting over with an empty database, the next snapshot would overwrite the file with it. a file
+            //that does not parse throws its RuntimeException right through as well
+            throw new UncheckedIOException("Could not load " + file, e);
+        }
+
+        try {
+            expiries.load(expiriesFile); //before the replay, which brings it up to date
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not load " + expiriesFile + ", keys will not expire: " + e.getMessage());
+        }
+
+        if ("wal".equals(PERSISTENCE)) {
+            try {
+                WriteAheadLog log = new WriteAheadLog(logFile,
+                        WriteAheadLog.FsyncPolicy.from(System.getProperty("jsondb.wal.fsync", "group")),
+                        Long.getLong("jsondb.wal.fsyncIntervalMs", 100), metrics.fsync);
+                log.replay(Main::applyRecord); //rebuild db = snapshot + every mutation logged after it
+                log.open();
+                wal = log;
+                compactor = new SnapshotCompactor(log, file, format, () -> {
+                            JsonObject copy = captureSnapshot();
+                            expiries.save(expiriesFile); //after the copy, see Expiries.save
+                            return copy;
+                        },
+                        Long.getLong("jsondb.snapshot.intervalMs", 60_000),
+                        Long.getLong("jsondb.snapshot.logBytes", 64L * 1024 * 1024));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open write-ahead log " + logFile, e);
+            }
+        }
+
+        try {
+            for (SecondaryIndex index : secondaryIndexes.load()) { //after replay, so the entries match the data
+                secondaryIndexes.add(index, recordsOf(index.collection));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load secondary indexes", e);
+        }
+
+        if ("group".equals(COMMIT_MODE)) {
+            pipeline = new CommitPipeline(locks, Main::persist, Main::awaitDurable,
+                    Integer.getInteger("jsondb.commit.batchSize", 128),
+                    Long.getLong("jsondb.commit.lingerMs", 2),
+                    metrics);
         }
     }
 
     public static void main(String[] args) {
 
+        if (compactor != null) {
+            compactor.start();
+        }
+        if (pipeline != null) {
+            pipeline.start();
+        }
+        startStatsDump();
+        if (replication != null) {
+            try {
+                replication.start();
+            } catch (IOException e) {
+                System.err.println("Could not open the replication port: " + e.getMessage());
+                return;
+            }
+        }
+        if (follower != null) {
+            follower.start(); //a follower gets the leader's deletes of expired keys instead of expiring them itself
+        } else {
+            startExpirer();
+        }
+
+        if ("nio".equals(FRONTEND)) {
+            try {
+                new NioServer(LISTENING_ON_PORT,
+                        Integer.getInteger("jsondb.workers", Runtime.getRuntime().availableProcessors() * 2)).run();
+            } catch (IOException e) {
+                System.err.println("ServerSocket Error: " + e.getMessage());
+                e.printStackTrace();
+            }
+            System.out.println("Server metrics: " + metrics.toJson());
+            return;
+        }
+
         ExecutorService executor = Executors.newFixedThreadPool(5);
+        metrics.queueDepth(((ThreadPoolExecutor) executor).getQueue()::size); //accepted, waiting for one of the 5
 
         try (
                 ServerSocket server = new ServerSocket(LISTENING_ON_PORT);
@@ -60,9 +258,59 @@ public class Main {
             e.printStackTrace();
         } finally {
             executor.shutdown();
+            System.out.println("Server metrics: " + metrics.toJson());
         }
     }
 
+    //-Djsondb.stats.file=stats.jsonl appends the stats response as one json line every jsondb.stats.intervalMs
+    private static void startStatsDump() {
+        String path = System.getProperty("jsondb.stats.file");
+        if (path == null) {
+            return;
+        }
+        long intervalMs = Long.getLong("jsondb.stats.intervalMs", 10_000);
+        Thread dumper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                    JsonObject line = stats();
+                    line.addProperty("time", System.currentTimeMillis());
+                    try (Writer out = new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8)) {
+                        out.write(line + "\n");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Could not write stats to " + path + ": " + e.getMessage());
+                }
+            }
+        }, "stats-dump");
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    //deletes what expiries says is due, one tick at a time
+    private static void startExpirer() {
+        Thread expirer = new Thread(() -> {
+            while (true) {
+                try {
+                    long tick = expiries.tickMs();
+                    Thread.sleep(tick - System.currentTimeMillis() % tick);
+                    List<Expiries.Entry> due = expiries.advance(System.currentTimeMillis());
+                    if (!due.isEmpty()) {
+                        expire(due);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) { //a failed tick must not stop expiry for good
+                    e.printStackTrace();
+                }
+            }
+        }, "expirer");
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
     //here the logic is that whenever an error is thrown in opening a ServerSeocket server or in the body of while,
     //an IOException is thrown and executor is closed. so that means that if handleClient also throws any error,
     // the catch block will be run and any exceptions in handleClient method will be caught here
@@ -72,62 +320,257 @@ public class Main {
         //from the main method because main can close socket (if its in main's try-with-resources block
         //while the thread is running
 
+        metrics.connectionOpened();
         try (
                 Socket client = socket;
-                DataInputStream input = new DataInputStream(client.getInputStream());
-                DataOutputStream output = new DataOutputStream(client.getOutputStream());
+                DataInputStream input = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
         ) {
+            FrameCodec codec = new FrameCodec(input, output);
+            ReceivedRequest receivedMessage = codec.readRequest();
 
-            ReceivedRequest receivedMessage = gson.fromJson(input.readUTF(), ReceivedRequest.class);
-            String type = receivedMessage.getType();
+            if (!"session".equals(receivedMessage.getType())) {
+                respond(server, receivedMessage, codec, null); //classic mode, one request per connection
+                return;
+            }
+
+            //session mode: keep the connection open and answer requests until the client hangs up. the client may
+            //send the next requests without waiting, responses come back in order and carry the request id
+            codec.writeResponse(new SendResponse("OK", null, null).withId(receivedMessage.getId()));
+            if ("chunked".equals(receivedMessage.getFraming())) {
+                codec.useChunkedFraming(); //everything after the handshake is length prefixed chunks
+            }
+            try {
+                while (running) {
+                    ReceivedRequest nextRequest;
+                    try {
+                        nextRequest = codec.readRequest();
+                    } catch (EOFException e) {
+                        return; //client closed the session
+                    }
+                    if (!respond(server, nextRequest, codec, codec::subscriber)) {
+                        return;
+                    }
+                }
+            } finally {
+                codec.closeSubscriber(); //its watches go with the connection
+            }
 
-            if (type.equals("exit")) {
-                output.writeUTF(gson.toJson(new SendResponse("OK", null, null)));
+        } catch (Exception e) {
+            System.err.print("Error in Data Parsing" + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            metrics.connectionClosed();
+        }
+    }
 
-                // Stop the server
-                running = false;
+    //processes one request and writes its response, returns false when the server has been told to exit
+    private static boolean respond(ServerSocket server, ReceivedRequest receivedMessage, FrameCodec codec,
+                                   Supplier<Watches.Subscriber> subscriber) throws IOException {
+        String type = receivedMessage.getType();
 
-                // Close ServerSocket to unblock accept()
-                try {
-                    server.close();
-                } catch (IOException ignored) { }
+        if ("exit".equals(type)) {
+            codec.writeResponse(new SendResponse("OK", null, null).withId(receivedMessage.getId()));
 
-                return; // Exit the program
-            }
+            // Stop the server
+            running = false;
 
-            if (receivedMessage.getKey()==null) {
-                output.writeUTF(gson.toJson(new SendResponse("ERROR", null, "Key is required")));
-                return; //Exit the program
-            }
+            // Close ServerSocket to unblock accept()
+            try {
+                server.close();
+            } catch (IOException ignored) { }
 
-            if ("set".equals(type) && receivedMessage.getValue() == null) {
-                output.writeUTF(gson.toJson(new SendResponse("ERROR", null, "Value is required for set")));
-                return;
+            return false; // Exit the program
+        }
+
+        SendResponse serverResponse = process(receivedMessage, subscriber);
+
+        //send back response to client
+        codec.writeResponse(serverResponse.withId(receivedMessage.getId()));
+        responded(receivedMessage, serverResponse, subscriber);
+        return true;
+    }
+
+    //the front ends call this once a response is queued or written, so the first notification of a watch can not
+    //overtake its OK
+    static void responded(ReceivedRequest request, SendResponse response, Supplier<Watches.Subscriber> subscriber) {
+        if (subscriber != null && "watch".equals(request.getType()) && "OK".equals(response.response)) {
+            subscriber.get().acknowledged();
+        }
+    }
+
+    //every request the front ends hand us goes through here, which is where it is counted and timed. subscriber is
+    //the connection's Watches.Subscriber (created on first use), null where a connection carries only one request
+    static SendResponse process(ReceivedRequest receivedMessage, Supplier<Watches.Subscriber> subscriber) {
+        long start = ServerMetrics.sample();
+        SendResponse response = handle(receivedMessage, subscriber);
+        metrics.recordRequest(receivedMessage.getType(), start, "OK".equals(response.response));
+        if (replication != null && WRITES.contains(receivedMessage.getType()) && "OK".equals(response.response)) {
+            response.withSeq(replication.lastSeq()); //our write is in there (maybe others too), see Follower
+        }
+        return response;
+    }
+
+    private static SendResponse handle(ReceivedRequest receivedMessage, Supplier<Watches.Subscriber> subscriber) {
+        String type = receivedMessage.getType();
+
+        if ("stats".equals(type)) {
+            return new SendResponse("OK", stats(), null);
+        }
+
+        if (follower != null) {
+            if (WRITES.contains(type)) {
+                return new SendResponse("ERROR", null, "Read-only replica, writes go to the leader of " + follower.leader());
+            }
+            Long after = receivedMessage.getAfter();
+            if (after != null && "readYourWrites".equals(REPLICA_READS)) {
+                try {
+                    if (!follower.awaitApplied(after, REPLICA_WAIT_MS)) {
+                        return new SendResponse("ERROR", null, "Replica is behind, seq " + after + " not applied yet");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new SendResponse("ERROR", null, "Interrupted");
+                }
             }
+        }
 
-            JsonElement key = receivedMessage.getKey();
-            JsonElement value = receivedMessage.getValue();
+        String owner = shards == null ? null : misrouted(receivedMessage);
+        if (owner != null) {
+            return new SendResponse("ERROR", null, "Key belongs to shard " + owner);
+        }
 
-            SendResponse serverResponse = switch (type) {
-                case "set" -> setToFile(key, value);
-                case "get" -> getFromFile(key);
-                case "delete" -> deleteFromFile(key);
-                default -> new SendResponse("ERROR", null, null);
-            };
+        if (receivedMessage.getKey() != null && !isKey(receivedMessage.getKey())) {
+            return new SendResponse("ERROR", null, KEY_SHAPE);
+        }
+
+        if ("mget".equals(type) || "mset".equals(type) || "mdelete".equals(type) || "transaction".equals(type)) {
+            return batch(type, receivedMessage.getRequests());
+        }
 
+        if ("createIndex".equals(type) || "dropIndex".equals(type) || "query".equals(type)) {
+            return indexRequest(receivedMessage);
+        }
 
-            String jsonSendResponse = gson.toJson(serverResponse);
+        if ("scan".equals(type) && receivedMessage.getKey() != null) {
+            return scan(receivedMessage);
+        }
 
-            //send back response to client
-            output.writeUTF(jsonSendResponse);
+        if (receivedMessage.getKey()==null) {
+            return new SendResponse("ERROR", null, "Key is required");
+        }
 
-        } catch (Exception e) {
-            System.err.print("Error in Data Parsing" + e.getMessage());
-            e.printStackTrace();
+        if ("set".equals(type) && receivedMessage.getValue() == null) {
+            return new SendResponse("ERROR", null, "Value is required for set");
+        }
+
+        if (receivedMessage.getTtlMs() != null && receivedMessage.getTtlMs() <= 0) {
+            return new SendResponse("ERROR", null, "ttlMs must be positive");
+        }
+
+        if ("watch".equals(type) || "unwatch".equals(type)) {
+            return watchRequest(receivedMessage, subscriber);
+        }
+
+        JsonElement key = receivedMessage.getKey();
+        JsonElement value = receivedMessage.getValue();
+
+        return switch (type == null ? "" : type) {
+            case "set" -> setToFile(key, value, receivedMessage.getTtlMs());
+            case "get" -> {
+                ByteBuffer raw = rawValue(key);
+                yield raw != null ? new SendResponse("OK", null, null).withRawValue(raw) : cachedGet(key);
+            }
+            case "delete" -> deleteFromFile(key);
+            case "cas", "incr" -> readModifyWrite(receivedMessage);
+            default -> new SendResponse("ERROR", null, null);
+        };
+    }
+
+    //watch and unwatch, they belong to the connection they came in on so they need a session
+    private static SendResponse watchRequest(ReceivedRequest request, Supplier<Watches.Subscriber> subscriber) {
+        if (subscriber == null) {
+            return new SendResponse("ERROR", null, "Watching needs a session");
+        }
+        JsonArray path;
+        try {
+            path = asPath(request.getKey());
+            if (path.isEmpty()) {
+                return new SendResponse("ERROR", null, "Key path must not be empty");
+            }
+            PathIndex.path(path); //every part has to be a key name
+        } catch (RuntimeException e) {
+            return new SendResponse("ERROR", null, KEY_SHAPE);
+        }
+        if ("unwatch".equals(request.getType())) {
+            int removed = watches.unwatch(subscriber.get(), path);
+            return removed == 0
+                    ? new SendResponse("ERROR", null, "Not watching that key")
+                    : new SendResponse("OK", new JsonPrimitive(removed), null);
         }
+        watches.watch(subscriber.get(), request.getId(), request.getKey(), path);
+        return new SendResponse("OK", null, null);
     }
 
-    private static JsonElement traverse(JsonElement current, JsonArray keys) {
+    //what a notification carries, read lock free like a get. cold values stay cold
+    private static JsonElement watchedValue(JsonArray path) {
+        JsonElement top = topValue(path.get(0).getAsString(), false);
+        return top == null || path.size() == 1 ? top : traverse(top, tail(path));
+    }
+
+    //the shard that owns a key of this request if it is not us, null when everything is ours. an empty key path
+    //(the whole database, or the top-level keys as a collection) is answered with our part of it
+    private static String misrouted(ReceivedRequest request) {
+        List<JsonElement> keys = new ArrayList<>();
+        if (request.getKey() != null) {
+            keys.add(request.getKey());
+        }
+        if (request.getRequests() != null) {
+            request.getRequests().stream().map(ReceivedRequest::getKey).filter(key -> key != null).forEach(keys::add);
+        }
+        for (JsonElement key : keys) {
+            String top;
+            try {
+                top = topKey(key);
+            } catch (RuntimeException e) {
+                continue; //not a key at all, the request itself reports that
+            }
+            String owner = top == null ? SHARD : shards.shardOf(top);
+            if (!owner.equals(SHARD)) {
+                return owner;
+            }
+        }
+        return null;
+    }
+
+    //the server's metrics plus how big the database is right now
+    static JsonObject stats() {
+        JsonObject json = metrics.toJson();
+        JsonObject database = new JsonObject();
+        database.addProperty("keys", db.size() + (cold == null ? 0 : cold.size()));
+        database.addProperty("fileBytes", file.length());
+        database.addProperty("logBytes", wal == null ? 0 : logFile.length());
+        if (pathIndex != null) {
+            database.addProperty("pathIndexEntries", pathIndex.size());
+        }
+        Runtime runtime = Runtime.getRuntime();
+        database.addProperty("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+        if (shards != null) {
+            database.addProperty("shard", SHARD);
+        }
+        json.add("database", database);
+        if (replication != null) {
+            json.add("replication", replication.toJson());
+        }
+        if (follower != null) {
+            json.add("follower", follower.toJson());
+        }
+        json.add("watches", watches.toJson());
+        json.add("ttl", expiries.toJson());
+        return json;
+    }
+
+    static JsonElement traverse(JsonElement current, JsonArray keys) {
         JsonElement level = current;
         for (JsonElement key : keys) {
             if (!level.isJsonObject()) {
@@ -142,159 +585,902 @@ public class Main {
         return level;
     }
 
-    private static void persist() throws IOException {
-        Files.writeString(file.toPath(), gson.toJson(db));
+    //a key name or a path of key names. everything that takes a key relies on this, topKey and the stripes are worked
+    //out before a write's guarded section
+    static boolean isKey(JsonElement keyElement) {
+        if (keyElement.isJsonPrimitive()) {
+            return isKeyName(keyElement);
+        }
+        if (!keyElement.isJsonArray()) {
+            return false;
+        }
+        for (JsonElement part : keyElement.getAsJsonArray()) {
+            if (!part.isJsonPrimitive() || !isKeyName(part)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    static SendResponse getFromFile(JsonElement keyElement) {
+    //the cache, the path index, watches and expiries join key names with \0, so a name containing one could pass for
+    //a path and hit another key's entries
+    private static boolean isKeyName(JsonElement part) {
+        return part.getAsString().indexOf('\0') < 0;
+    }
+
+    //the top-level key decides which lock stripe a write needs, null means the whole database
+    static String topKey(JsonElement keyElement) {
+        if (keyElement.isJsonPrimitive()) {
+            return keyElement.getAsString();
+        }
+        JsonArray keys = keyElement.getAsJsonArray();
+        return keys.isEmpty() ? null : keys.get(0).getAsString();
+    }
+
+    //the value of a top-level key wherever it is. a value that is still cold is decoded, and with promote it moves
+    //into db for good. that happens under the stripe's read lock so that a writer can not delete or replace the key
+    //between our look into the cold store and the put, which would bring the old value back
+    private static JsonElement topValue(String key, boolean promote) {
+        JsonElement value = db.get(key);
+        if (value != null || cold == null) {
+            return value;
+        }
+        ColdStore.Slot slot = cold.get(key);
+        if (slot == null) {
+            return db.get(key); //promoted or written since our first look
+        }
+        JsonElement loaded = slot.load();
+        if (!promote || !slot.promotable()) {
+            return loaded;
+        }
+        ReadWriteLock lock = locks.forKey(key);
+        lock.readLock().lock(); //a writer of this key already holds the write lock, which allows this
+        try {
+            synchronized (slot) { //readers of the same key promote one after the other, the second finds it done
+                if (cold.get(key) != slot) {
+                    return db.get(key);
+                }
+                if (pathIndex != null) {
+                    pathIndex.update(key, null, loaded); //before db, a reader that finds the value also finds its paths
+                }
+                db.put(key, loaded);
+                cold.remove(key, slot);
+                return loaded;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //get through the response cache. a miss is answered with the bytes it just cached, so it is serialized only once
+    private static SendResponse cachedGet(JsonElement keyElement) {
+        if (responseCache == null || (keyElement.isJsonArray() && keyElement.getAsJsonArray().isEmpty())) {
+            return getFromFile(keyElement); //the whole database is never cached
+        }
+        String path;
+        try {
+            path = cachePath(keyElement);
+        } catch (RuntimeException e) {
+            return getFromFile(keyElement); //not a key path, answered with the read error
+        }
+        byte[] cached = responseCache.get(path);
+        if (cached != null) {
+            return new SendResponse("OK", null, null).withRawValue(ByteBuffer.wrap(cached));
+        }
+        long version = responseCache.version(); //before reading, see ResponseCache
+        SendResponse response = getFromFile(keyElement);
+        if (!"OK".equals(response.response)) {
+            return response;
+        }
+        byte[] json = gson.toJson(response.value).getBytes(StandardCharsets.UTF_8);
+        responseCache.put(path, json, version);
+        return new SendResponse("OK", null, null).withRawValue(ByteBuffer.wrap(json));
+    }
+
+    private static String cachePath(JsonElement keyElement) {
+        return keyElement.isJsonPrimitive() ? keyElement.getAsString() : PathIndex.path(keyElement.getAsJsonArray());
+    }
 
-        Lock readLock = lock.readLock();
-        readLock.lock(); //lock file for reading but multiple readers can read file simultaneously
+    //the json bytes of an off-heap top-level value, so a get can send them as they are. null for everything else,
+    //including keys that are no key at all, getFromFile answers those
+    private static ByteBuffer rawValue(JsonElement keyElement) {
+        if (cold == null || (keyElement.isJsonArray() && keyElement.getAsJsonArray().size() != 1)) {
+            return null;
+        }
+        JsonElement top = keyElement.isJsonArray() ? keyElement.getAsJsonArray().get(0) : keyElement;
+        if (!top.isJsonPrimitive()) {
+            return null;
+        }
+        String key = top.getAsString();
+        if (db.containsKey(key)) {
+            return null;
+        }
+        ColdStore.Slot slot = cold.get(key);
+        return slot == null ? null : slot.json();
+    }
 
+    //every top-level key in order, from db and the cold store
+    private static Iterator<String> topKeys(String from, boolean inclusive) {
+        NavigableSet<String> hot = from == null ? db.navigableKeySet() : db.navigableKeySet().tailSet(from, inclusive);
+        if (cold == null) {
+            return hot.iterator();
+        }
+        NavigableSet<String> stillCold = from == null ? cold.keys() : cold.keys().tailSet(from, inclusive);
+        return ColdStore.merge(hot.iterator(), stillCold.iterator());
+    }
+
+    //every top-level entry in key order, cold values are decoded for the caller but stay cold
+    private static Iterable<Map.Entry<String, JsonElement>> topEntries() {
+        if (cold == null) {
+            return db.entrySet();
+        }
+        List<Map.Entry<String, JsonElement>> entries = new ArrayList<>();
+        topKeys(null, true).forEachRemaining(key -> {
+            JsonElement value = topValue(key, false);
+            if (value != null) {
+                entries.add(Map.entry(key, value));
+            }
+        });
+        return entries;
+    }
+
+    //point-in-time JsonObject of the whole database. the stripes' read locks only keep writers out while the top-level
+    //references are copied, the values themselves are immutable and can be serialized after the locks are released
+    private static JsonObject rootObject() {
+        locks.lockAll(false);
+        try {
+            JsonObject root = new JsonObject();
+            topEntries().forEach(entry -> root.add(entry.getKey(), entry.getValue()));
+            return root;
+        } finally {
+            locks.unlockAll(false);
+        }
+    }
+
+    //appends to the write-ahead log, in snapshot mode it only marks the database as changed. returns the sequence
+    //number the writer has to wait for before answering
+    private static long log(String op, JsonElement key, JsonElement value, Long expiresAt) throws IOException {
+        if (responseCache != null) {
+            responseCache.invalidate(cachePath(key));
+        }
+        expiries.update(key, expiresAt);
+        long seq = wal != null ? wal.append(op, key, value, expiresAt) : snapshotPersister.markChanged();
+        if (replication != null) {
+            replication.append(op, key, value, expiresAt); //after our own log, followers only get what we have committed
+        }
+        watches.changed(key);
+        return seq;
+    }
+
+    //a multi-key write becomes a single log record, so replay after a crash sees all of it or none of it
+    private static long log(List<LogRecord> effects) throws IOException {
+        if (effects.size() == 1) {
+            LogRecord effect = effects.get(0);
+            return log(effect.op, effect.key, effect.value, effect.expiresAt);
+        }
+        if (responseCache != null) {
+            effects.forEach(effect -> responseCache.invalidate(cachePath(effect.key)));
+        }
+        effects.forEach(effect -> expiries.update(effect.key, effect.expiresAt));
+        long seq = wal != null ? wal.appendBatch(effects) : snapshotPersister.markChanged();
+        if (replication != null) {
+            replication.appendBatch(effects);
+        }
+        watches.changed(effects);
+        return seq;
+    }
+
+    //called once after one or more mutations. returns the sequence number that covers all of them
+    private static long persist() {
+        return wal != null ? wal.lastSeq() : snapshotPersister.lastChange();
+    }
+
+    //called after the stripe lock is released so that other writers can share the same fsync or rewrite
+    private static void awaitDurable(long seq) throws IOException {
+        long start = ServerMetrics.now();
+        if (wal != null) {
+            wal.awaitDurable(seq);
+        } else {
+            snapshotPersister.awaitPersisted(seq);
+        }
+        metrics.durableWait.since(start);
+    }
+
+    //snapshot mode rewrite, writers only pause while rootObject() copies the top-level references. never in place,
+    //db.bin may still be mapped by the cold store
+    private static void writeDbFile() throws IOException {
+        long start = ServerMetrics.now();
+        JsonObject root = rootObject();
+        expiries.save(expiriesFile); //after the copy, see Expiries.save
+        AtomicFile.write(file, out -> format.write(root, out));
+        metrics.snapshotWrite.since(start);
+    }
+
+    //runs a mutation either directly under its stripe's write lock or through the group committer
+    private static SendResponse write(int[] stripes, Mutation mutation, String errorReason) {
+        if (pipeline != null) {
+            return pipeline.submit(stripes, mutation, errorReason);
+        }
+        SendResponse response;
+        long seq;
+        locks.lock(stripes, true); // block other writers of these keys, readers never wait
+
+        try {
+            response = mutation.apply();
+            if (!"OK".equals(response.response)) {
+                return response; //nothing changed, nothing to persist
+            }
+            seq = persist();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new SendResponse("ERROR", null, errorReason);
+        } finally {
+            locks.unlock(stripes, true);
+        }
+
+        try {
+            awaitDurable(seq);
+            return response;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new SendResponse("ERROR", null, errorReason);
+        }
+    }
+
+    //point-in-time copy for the compactor. taking every stripe's read lock keeps writers out while we copy the
+    //top-level references and switch to a fresh log, the immutable values are serialized after the locks are released
+    private static JsonObject captureSnapshot() throws IOException {
+        locks.lockAll(false);
+        try {
+            JsonObject copy = new JsonObject();
+            topEntries().forEach(entry -> copy.add(entry.getKey(), entry.getValue()));
+            wal.rotate();
+            return copy;
+        } finally {
+            locks.unlockAll(false);
+        }
+    }
+
+    //leader: what a new follower starts from. with every stripe's read lock held no writer can be between changing db
+    //and logging the change, so the copy contains exactly the records up to lastSeq()
+    private static ReplicationLog.Snapshot replicationSnapshot() {
+        locks.lockAll(false);
+        try {
+            JsonObject copy = new JsonObject();
+            topEntries().forEach(entry -> copy.add(entry.getKey(), entry.getValue()));
+            return new ReplicationLog.Snapshot(copy, replication.lastSeq());
+        } finally {
+            locks.unlockAll(false);
+        }
+    }
+
+    //follower: replaces our data with the leader's, logged as one batch so a crash leaves the old or the new state.
+    //neither this nor applyReplicated waits for durability, a restarted follower starts over from a fresh snapshot
+    private static void installSnapshot(JsonObject root) throws IOException {
+        locks.lockAll(true);
+        try {
+            List<LogRecord> effects = new ArrayList<>();
+            List<String> gone = new ArrayList<>();
+            topKeys(null, true).forEachRemaining(key -> {
+                if (!root.has(key)) {
+                    gone.add(key);
+                }
+            });
+            for (String key : gone) {
+                live.put(key, null);
+                effects.add(new LogRecord(0, "delete", new JsonPrimitive(key), null));
+            }
+            for (Map.Entry<String, JsonElement> entry : root.entrySet()) {
+                live.put(entry.getKey(), entry.getValue());
+                effects.add(new LogRecord(0, "set", new JsonPrimitive(entry.getKey()), entry.getValue()));
+            }
+            if (!effects.isEmpty()) {
+                log(effects);
+            }
+        } finally {
+            locks.unlockAll(true);
+        }
+    }
+
+    //follower: one record shipped by the leader, under the write locks of its keys like any other write
+    private static void applyReplicated(LogRecord record) throws IOException {
+        List<LogRecord> ops = "batch".equals(record.op) ? record.ops : List.of(record);
+        Set<String> topKeys = new HashSet<>();
+        ops.forEach(op -> topKeys.add(topKey(op.key)));
+        int[] stripes = locks.stripesFor(topKeys);
+        locks.lock(stripes, true);
+        try {
+            applyRecord(record);
+            log(ops);
+        } finally {
+            locks.unlock(stripes, true);
+        }
+    }
+
+    private static void applyRecord(LogRecord record) {
+        switch (record.op) {
+            case "set" -> {
+                applySet(live, record.key, record.value);
+                expiries.update(record.key, record.expiresAt);
+            }
+            case "delete" -> {
+                applyDelete(live, record.key);
+                expiries.update(record.key, null);
+            }
+            case "batch" -> record.ops.forEach(Main::applyRecord);
+            default -> System.err.println("Skipping unknown log record type: " + record.op);
+        }
+    }
+
+    //lock free: every value reachable from db is immutable, so whatever we find stays valid while it is serialized
+    static SendResponse getFromFile(JsonElement keyElement) {
+        long start = ServerMetrics.sample();
         try {
             JsonElement result;
 
             if (keyElement.isJsonPrimitive()) { //key is a simple string
-                String key = keyElement.getAsString();
-                if (!db.has(key)) {
-                    return new SendResponse("ERROR", null, "No such key");
-                }
-                result = db.get(key);
+                result = topValue(keyElement.getAsString(), true);
+
+            } else if (keyElement.getAsJsonArray().isEmpty()) { //empty key array, the whole database
+                result = rootObject();
 
             } else { // key is an array
                 JsonArray keys = keyElement.getAsJsonArray();
-                result = traverse(db, keys);
-                if (result == null) {
-                    return new SendResponse("ERROR", null, "No such key");
+                JsonElement top = topValue(keys.get(0).getAsString(), true);
+                if (top == null || keys.size() == 1) {
+                    result = top;
+                } else {
+                    result = pathIndex != null ? pathIndex.get(keys) : null;
+                    if (result == null) { //off-heap values are not in the path index
+                        result = traverse(top, tail(keys));
+                    }
                 }
             }
+            metrics.traverse.since(start);
 
+            if (result == null) {
+                return new SendResponse("ERROR", null, "No such key");
+            }
             return new SendResponse("OK", result, null);
 
         } catch (Exception e) {
             return new SendResponse("ERROR", null, "Database read Error");
-        } finally {
-            readLock.unlock();
         }
     }
 
     static SendResponse setToFile(JsonElement keyElement, JsonElement valueElement) {
-        Lock writeLock = lock.writeLock();
-        writeLock.lock(); // Wait until all readers finish, block other writers
-
-        try {
-            if (keyElement.isJsonPrimitive()) {
-                db.add(keyElement.getAsString(), valueElement);
+        return setToFile(keyElement, valueElement, null);
+    }
 
-            } else {
-                JsonArray keys = keyElement.getAsJsonArray();
-                JsonObject obj = db;
+    //with a ttl the key is deleted ttlMs from now, without one an earlier ttl of the key is gone
+    static SendResponse setToFile(JsonElement keyElement, JsonElement valueElement, Long ttlMs) {
+        Long expiresAt = ttlMs == null ? null : System.currentTimeMillis() + ttlMs;
+        return write(locks.stripesFor(topKey(keyElement)), () -> {
+            applySet(live, keyElement, valueElement);
+            log("set", keyElement, valueElement, expiresAt);
+            return new SendResponse("OK", null, null);
+        }, "Database write Error");
+    }
 
-                // Traverse until last-1 key
-                for (int i = 0; i < keys.size() - 1; i++) {
-                    String k = keys.get(i).getAsString();
-                    if (!obj.has(k) || !obj.get(k).isJsonObject()) {
-                        obj.add(k, new JsonObject());
-                    }
-                    obj = obj.getAsJsonObject(k);
-                }
 
-                String lastKey = keys.get(keys.size() - 1).getAsString();
-                obj.add(lastKey, valueElement);
+    static SendResponse deleteFromFile(JsonElement keyElement) {
+        return write(locks.stripesFor(topKey(keyElement)), () -> {
+            if (!applyDelete(live, keyElement)) {
+                return new SendResponse("ERROR", null, "No such key");
             }
-
-            persist();
+            log("delete", keyElement, null, null);
             return new SendResponse("OK", null, null);
+        }, "Database delete error");
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new SendResponse("ERROR", null, "Database write Error");
-        } finally {
-            writeLock.unlock();
+    //expirer thread: deletes like deleteFromFile, through log() so the delete is persisted, replicated and seen by the
+    //cache and the watches. the keys of one tick share a single wait for durability
+    private static void expire(List<Expiries.Entry> due) throws IOException {
+        long seq = 0;
+        for (int i = 0; i < due.size(); i++) {
+            Expiries.Entry entry = due.get(i);
+            int[] stripes = locks.stripesFor(topKey(entry.key));
+            locks.lock(stripes, true);
+            try {
+                if (!expiries.isCurrent(entry)) {
+                    continue; //set or deleted again since it came due
+                }
+                if (applyDelete(live, entry.key)) {
+                    log("delete", entry.key, null, null);
+                    expiries.recordExpired();
+                } else {
+                    expiries.update(entry.key, null); //gone already, e.g. its parent was replaced by a value
+                }
+                seq = persist();
+            } catch (IOException | RuntimeException e) {
+                expiries.retry(due.subList(i, due.size())); //advance has unlinked them, the next tick tries again
+                throw e;
+            } finally {
+                locks.unlock(stripes, true);
+            }
         }
+        awaitDurable(seq);
     }
 
+    private static JsonArray tail(JsonArray keys) {
+        JsonArray rest = new JsonArray(keys.size() - 1);
+        for (int i = 1; i < keys.size(); i++) {
+            rest.add(keys.get(i));
+        }
+        return rest;
+    }
 
-    static SendResponse deleteFromFile(JsonElement keyElement) {
+    //mget/mset/mdelete/transaction. mget reads lock free like get, the writes take the stripes of every key involved
+    //once, apply everything on a staged copy and publish and log it in one go
+    private static SendResponse batch(String type, List<ReceivedRequest> requests) {
+        if (requests == null || requests.isEmpty()) {
+            return new SendResponse("ERROR", null, "Requests are required");
+        }
+        List<ReceivedRequest> ops = new ArrayList<>();
+        Set<String> topKeys = new HashSet<>();
+        for (ReceivedRequest request : requests) {
+            String opType = switch (type) {
+                case "mget" -> "get";
+                case "mset" -> "set";
+                case "mdelete" -> "delete";
+                default -> request.getType(); //transaction, every entry says what it is
+            };
+            ReceivedRequest op = new ReceivedRequest(opType, request.getKey(), request.getValue());
+            op.expected = request.getExpected();
+            op.ttlMs = request.getTtlMs();
+            ops.add(op);
+            if (request.getKey() != null && isKey(request.getKey())) { //applyStaged reports the others
+                topKeys.add(topKey(request.getKey()));
+            }
+        }
 
-        Lock writeLock = lock.writeLock();
-        writeLock.lock(); // Wait until all readers finish, block other writers
+        if ("mget".equals(type)) {
+            List<SendResponse> results = new ArrayList<>();
+            for (ReceivedRequest op : ops) {
+                results.add(op.getKey() == null ? new SendResponse("ERROR", null, "Key is required") : getFromFile(op.getKey()));
+            }
+            return new SendResponse("OK", null, null).withResults(results);
+        }
 
-        try {
-            if (keyElement.isJsonPrimitive()) {
-                String k = keyElement.getAsString();
-                if (!db.has(k)) {
+        boolean atomic = "transaction".equals(type);
+        return write(locks.stripesFor(topKeys), () -> {
+            StagedWrites staged = new StagedWrites(live);
+            List<SendResponse> results = new ArrayList<>();
+            List<LogRecord> effects = new ArrayList<>();
+            boolean failed = false;
+            for (ReceivedRequest op : ops) {
+                SendResponse result = applyStaged(staged, op, effects);
+                failed |= !"OK".equals(result.response);
+                results.add(result);
+            }
+            if (atomic && failed) { //all or nothing, the staged copy is simply dropped
+                return new SendResponse("ERROR", null, "Transaction aborted").withResults(results);
+            }
+            if (!effects.isEmpty()) {
+                staged.publish();
+                log(effects);
+            }
+            return new SendResponse("OK", null, null).withResults(results);
+        }, "Database write Error");
+    }
+
+    //one operation of a batch against the staged copy, later operations see the effects of earlier ones
+    private static SendResponse applyStaged(KeySpace staged, ReceivedRequest op, List<LogRecord> effects) {
+        JsonElement key = op.getKey();
+        if (key == null) {
+            return new SendResponse("ERROR", null, "Key is required");
+        }
+        if (!isKey(key)) {
+            return new SendResponse("ERROR", null, KEY_SHAPE);
+        }
+        if (topKey(key) == null) {
+            return new SendResponse("ERROR", null, "Key path must not be empty");
+        }
+        if (op.getTtlMs() != null && op.getTtlMs() <= 0) {
+            return new SendResponse("ERROR", null, "ttlMs must be positive");
+        }
+        switch (op.getType() == null ? "" : op.getType()) {
+            case "get": {
+                JsonElement result = lookup(staged, key);
+                return result == null
+                        ? new SendResponse("ERROR", null, "No such key")
+                        : new SendResponse("OK", result, null);
+            }
+            case "cas": { //compare and set, expected null means the key must not exist yet
+                if (op.getValue() == null) {
+                    return new SendResponse("ERROR", null, "Value is required for cas");
+                }
+                JsonElement current = lookup(staged, key);
+                JsonElement expected = op.getExpected();
+                boolean matches = expected == null || expected.isJsonNull() ? current == null : expected.equals(current);
+                if (!matches) {
+                    return new SendResponse("ERROR", current, "Compare failed"); //current value saves the client a get
+                }
+                applySet(staged, key, op.getValue());
+                effects.add(expiring(new LogRecord(0, "set", key, op.getValue()), expiryAfter(op, key, effects)));
+                return new SendResponse("OK", null, null);
+            }
+            case "incr": { //adds value (default 1) to the number at the key, a missing key counts as 0
+                JsonElement delta = op.getValue() == null ? new JsonPrimitive(1) : op.getValue();
+                JsonElement current = lookup(staged, key);
+                if (!isNumber(delta) || (current != null && !isNumber(current))) {
+                    return new SendResponse("ERROR", current, "Value is not a number");
+                }
+                if (!addable(delta) || (current != null && !addable(current))) {
+                    return new SendResponse("ERROR", current, "Number out of range");
+                }
+                JsonElement sum = add(current == null ? new JsonPrimitive(0) : current, delta);
+                applySet(staged, key, sum);
+                //logged as the result so replay stays idempotent
+                effects.add(expiring(new LogRecord(0, "set", key, sum), expiryAfter(op, key, effects)));
+                return new SendResponse("OK", sum, null);
+            }
+            case "set":
+                if (op.getValue() == null) {
+                    return new SendResponse("ERROR", null, "Value is required for set");
+                }
+                applySet(staged, key, op.getValue());
+                effects.add(expiring(new LogRecord(0, "set", key, op.getValue()), expiryAfter(op, key, effects)));
+                return new SendResponse("OK", null, null);
+            case "delete":
+                if (!applyDelete(staged, key)) {
                     return new SendResponse("ERROR", null, "No such key");
                 }
-                db.remove(k);
+                effects.add(new LogRecord(0, "delete", key, null));
+                return new SendResponse("OK", null, null);
+            default:
+                return new SendResponse("ERROR", null, "Unsupported operation in batch: " + op.getType());
+        }
+    }
 
-            } else {
-                JsonArray keys = keyElement.getAsJsonArray();
-                JsonObject obj = db;
+    //the deadline a set, cas or incr leaves on its key: a new one from its ttlMs, otherwise none for a set and the
+    //current one for cas and incr, which only change the value. current means after the batch's earlier effects
+    private static Long expiryAfter(ReceivedRequest op, JsonElement key, List<LogRecord> effects) {
+        if (op.getTtlMs() != null) {
+            return System.currentTimeMillis() + op.getTtlMs();
+        }
+        if ("set".equals(op.getType())) {
+            return null;
+        }
+        String path = cachePath(key);
+        for (int i = effects.size() - 1; i >= 0; i--) {
+            String earlier = cachePath(effects.get(i).key);
+            if (earlier.equals(path)) {
+                return effects.get(i).expiresAt;
+            }
+            if (path.startsWith(earlier + '\0')) {
+                return null; //replaced together with its parent
+            }
+        }
+        return expiries.expiresAt(key);
+    }
 
-                for (int i = 0; i < keys.size() - 1; i++) {
-                    String k = keys.get(i).getAsString();
-                    if (!obj.has(k) || !obj.get(k).isJsonObject()) {
-                        return new SendResponse("ERROR", null, "No such key");
-                    }
-                    obj = obj.getAsJsonObject(k);
-                }
+    private static LogRecord expiring(LogRecord record, Long expiresAt) {
+        record.expiresAt = expiresAt;
+        return record;
+    }
 
-                String lastKey = keys.get(keys.size() - 1).getAsString();
-                if (!obj.has(lastKey)) {
-                    return new SendResponse("ERROR", null, "No such key");
+    //single cas/incr request, same code path as inside a transaction
+    static SendResponse readModifyWrite(ReceivedRequest op) {
+        if (topKey(op.getKey()) == null) {
+            return new SendResponse("ERROR", null, "Key path must not be empty");
+        }
+        return write(locks.stripesFor(topKey(op.getKey())), () -> {
+            List<LogRecord> effects = new ArrayList<>();
+            SendResponse response = applyStaged(live, op, effects);
+            if (!effects.isEmpty()) {
+                log(effects);
+            }
+            return response;
+        }, "Database write Error");
+    }
+
+    //a page of the entries under key in key order, at most limit of them. start is inclusive, cursor is the last key of
+    //the previous page and is exclusive, prefix keeps only keys that start with it. the response carries a cursor as
+    //long as there is more. the top level is the skip list itself, so a page costs O(log n + limit) and pages are
+    //read lock free (weakly consistent, like a get racing a write). nested objects keep insertion order, so for them
+    //every page is one pass that only remembers the limit smallest keys
+    private static SendResponse scan(ReceivedRequest request) {
+        int limit = request.getLimit() == null ? 100 : request.getLimit();
+        if (limit <= 0) {
+            return new SendResponse("ERROR", null, "Limit must be positive");
+        }
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        String from = request.getStart() == null || request.getStart().compareTo(prefix) < 0 ? prefix : request.getStart();
+        boolean inclusive = true;
+        if (request.getCursor() != null && request.getCursor().compareTo(from) >= 0) {
+            from = request.getCursor();
+            inclusive = false;
+        }
+
+        NavigableMap<String, JsonElement> entries;
+        JsonArray path = asPath(request.getKey());
+        if (path.isEmpty()) {
+            entries = new TreeMap<>();
+            Iterator<String> keys = topKeys(from, inclusive);
+            while (keys.hasNext() && entries.size() <= limit) { //one more than the page, to know whether there is a next one
+                String key = keys.next();
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                JsonElement value = topValue(key, false); //a scan over everything must not pull everything onto the heap
+                if (value != null) {
+                    entries.put(key, value);
                 }
-                obj.remove(lastKey);
             }
+        } else {
+            JsonElement node = topValue(path.get(0).getAsString(), true);
+            node = node == null ? null : traverse(node, tail(path));
+            if (node == null) {
+                return new SendResponse("ERROR", null, "No such key");
+            }
+            if (!node.isJsonObject()) {
+                return new SendResponse("ERROR", null, "Key is not an object");
+            }
+            entries = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> entry : node.getAsJsonObject().entrySet()) {
+                int order = entry.getKey().compareTo(from);
+                if ((order > 0 || (order == 0 && inclusive)) && entry.getKey().startsWith(prefix)) {
+                    entries.put(entry.getKey(), entry.getValue());
+                    if (entries.size() > limit + 1) { //one more than the page, to know whether there is a next one
+                        entries.pollLastEntry();
+                    }
+                }
+            }
+        }
 
-            persist();
-            return new SendResponse("OK", null, null);
+        JsonObject page = new JsonObject();
+        String last = null;
+        boolean more = false;
+        for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break; //sorted, so nothing after this can match either
+            }
+            if (page.size() == limit) {
+                more = true;
+                break;
+            }
+            page.add(entry.getKey(), entry.getValue());
+            last = entry.getKey();
+        }
+        return new SendResponse("OK", page, null).withCursor(more ? last : null);
+    }
 
+    //createIndex/dropIndex/query. key is the collection whose children are the records ([] for the top-level keys),
+    //field the path inside each record
+    private static SendResponse indexRequest(ReceivedRequest request) {
+        if (request.getKey() == null || request.getField() == null) {
+            return new SendResponse("ERROR", null, "Key and field are required");
+        }
+        JsonArray collection = asPath(request.getKey());
+        JsonArray field = asPath(request.getField());
+        try {
+            return switch (request.getType()) {
+                case "createIndex" -> createIndex(collection, field, request.getKind() == null ? "hash" : request.getKind());
+                case "dropIndex" -> secondaryIndexes.remove(collection, field, request.getKind())
+                        ? new SendResponse("OK", null, null)
+                        : new SendResponse("ERROR", null, "No such index");
+                default -> query(collection, field, request);
+            };
         } catch (Exception e) {
-            return new SendResponse("ERROR", null, "Database delete error");
+            e.printStackTrace();
+            return new SendResponse("ERROR", null, "Index error");
+        }
+    }
+
+    private static SendResponse createIndex(JsonArray collection, JsonArray field, String kind) throws IOException {
+        if (!"hash".equals(kind) && !"sorted".equals(kind)) {
+            return new SendResponse("ERROR", null, "Index kind must be hash or sorted");
+        }
+        boolean sorted = "sorted".equals(kind);
+        //writers of the collection wait until the index is built and registered, so none of their changes is missed
+        int[] stripes = locks.stripesFor(collection.isEmpty() ? null : collection.get(0).getAsString());
+        locks.lock(stripes, true);
+        try {
+            if (!secondaryIndexes.add(new SecondaryIndex(collection, field, sorted), recordsOf(collection))) {
+                return new SendResponse("ERROR", null, "Index already exists");
+            }
         } finally {
-            writeLock.unlock();
+            locks.unlock(stripes, true);
         }
+        return new SendResponse("OK", null, null);
     }
-}
 
-class ReceivedRequest { //to deserialize json to ReceivedRequest object
-    String type;
-    JsonElement key;
-    JsonElement value;
+    //equality with value, or a from (inclusive) / to (exclusive) range. without a fitting index the collection is
+    //scanned, which is still a lot cheaper than shipping all of it to the client. every candidate the index returns is
+    //checked against the current record, so a write racing the query can never produce a wrong match
+    private static SendResponse query(JsonArray collection, JsonArray field, ReceivedRequest request) {
+        JsonElement value = request.getValue();
+        JsonElement from = SecondaryIndex.normalize(request.getFrom());
+        JsonElement to = SecondaryIndex.normalize(request.getTo());
+        boolean range = value == null;
+        if (range && from == null && to == null) {
+            return new SendResponse("ERROR", null, "Value or range is required");
+        }
+        JsonElement equal = SecondaryIndex.normalize(value);
+        int limit = request.getLimit() == null ? Integer.MAX_VALUE : request.getLimit();
+
+        //an immutable version of the collection, or db itself for the top-level keys
+        JsonObject records = collection.isEmpty() ? null
+                : SecondaryIndex.collectionOf(collection, topValue(collection.get(0).getAsString(), true));
+        if (!collection.isEmpty() && records == null) {
+            return new SendResponse("OK", new JsonObject(), null);
+        }
+        SecondaryIndex index = secondaryIndexes.find(collection, field, range);
+        Iterable<String> candidates = index != null ? (range ? index.range(from, to) : index.equalTo(value))
+                : records == null ? () -> topKeys(null, true) : records.keySet();
+
+        JsonObject matches = new JsonObject();
+        for (String key : candidates) {
+            if (matches.size() >= limit) {
+                break;
+            }
+            JsonElement record = records == null ? topValue(key, false) : records.get(key);
+            JsonElement actual = SecondaryIndex.fieldOf(field, record);
+            boolean matching = actual != null && (range
+                    ? (from == null || SecondaryIndex.ORDER.compare(actual, from) >= 0)
+                        && (to == null || SecondaryIndex.ORDER.compare(actual, to) < 0)
+                    : actual.equals(equal));
+            if (matching) {
+                matches.add(key, record);
+            }
+        }
+        return new SendResponse("OK", matches, null);
+    }
 
-    public ReceivedRequest(String type, JsonElement key, JsonElement value) {
-        this.type = type;
-        this.key = key;
-        this.value = value;
+    //the records of a collection as they are right now, the top-level keys for []
+    private static Iterable<Map.Entry<String, JsonElement>> recordsOf(JsonArray collection) {
+        if (collection.isEmpty()) {
+            return topEntries();
+        }
+        JsonObject records = SecondaryIndex.collectionOf(collection, topValue(collection.get(0).getAsString(), true));
+        return records == null ? List.of() : records.entrySet();
     }
 
-    protected String getType() {
-        return this.type;
+    private static JsonArray asPath(JsonElement keyElement) {
+        if (keyElement.isJsonArray()) {
+            return keyElement.getAsJsonArray();
+        }
+        JsonArray path = new JsonArray();
+        path.add(keyElement);
+        return path;
     }
 
-    protected JsonElement getKey() {
-        return this.key;
+    private static JsonElement lookup(KeySpace space, JsonElement key) {
+        JsonElement top = space.get(topKey(key));
+        return top == null || key.isJsonPrimitive() ? top : traverse(top, tail(key.getAsJsonArray()));
     }
 
-    protected JsonElement getValue() {
-        return this.value;
+    private static boolean isNumber(JsonElement element) {
+        return element.isJsonPrimitive() && element.getAsJsonPrimitive().isNumber();
+    }
+
+    //at most MAX_DIGITS digits before and after the point. 1e1000000000 is a short string, but adding it to anything
+    //or turning it into a BigInteger writes out every digit
+    private static boolean addable(JsonElement number) {
+        BigDecimal value = number.getAsBigDecimal();
+        return value.precision() - value.scale() <= MAX_DIGITS && value.scale() <= MAX_DIGITS;
+    }
+
+    //integers stay integers (no 2.0 for 1 + 1), anything with a fraction is added as BigDecimal
+    private static JsonElement add(JsonElement a, JsonElement b) {
+        BigDecimal x = a.getAsBigDecimal();
+        BigDecimal y = b.getAsBigDecimal();
+        BigDecimal sum = x.add(y);
+        if (x.scale() <= 0 && y.scale() <= 0) {
+            return new JsonPrimitive(sum.toBigIntegerExact());
+        }
+        return new JsonPrimitive(sum);
+    }
+
+    //publishes a new version of the top-level value with valueElement at the key path, shared by live requests
+    //(under the key's stripe write lock), batches and log replay
+    private static void applySet(KeySpace space, JsonElement keyElement, JsonElement valueElement) {
+        if (keyElement.isJsonPrimitive()) {
+            space.put(keyElement.getAsString(), valueElement);
+            return;
+        }
+        JsonArray keys = keyElement.getAsJsonArray();
+        String top = keys.get(0).getAsString();
+        space.put(top, withValue(space.get(top), keys, 1, valueElement));
+    }
+
+    //returns false when there is nothing to delete
+    private static boolean applyDelete(KeySpace space, JsonElement keyElement) {
+        String top = keyElement.isJsonPrimitive()
+                ? keyElement.getAsString()
+                : keyElement.getAsJsonArray().get(0).getAsString();
+        JsonElement topValue = space.get(top);
+        if (topValue == null) {
+            return false;
+        }
+        if (keyElement.isJsonPrimitive() || keyElement.getAsJsonArray().size() == 1) {
+            space.put(top, null);
+            return true;
+        }
+        JsonElement updated = withoutKey(topValue, keyElement.getAsJsonArray(), 1);
+        if (updated == null) {
+            return false;
+        }
+        space.put(top, updated);
+        return true;
     }
-}
 
-class SendResponse{ //serialize SendResponse object to json and send
-    String response;
-    JsonElement value;
-    String reason;
+    //copy of node with value placed at keys[from..]. only the objects along the path are copied, everything else is
+    //shared with the old version. missing or non-object levels on the way are replaced by new objects
+    private static JsonElement withValue(JsonElement node, JsonArray keys, int from, JsonElement value) {
+        if (from == keys.size()) {
+            return value;
+        }
+        JsonObject copy = node != null && node.isJsonObject() ? shallowCopy(node.getAsJsonObject()) : new JsonObject();
+        String k = keys.get(from).getAsString();
+        copy.add(k, withValue(copy.get(k), keys, from + 1, value));
+        return copy;
+    }
 
-    public SendResponse(String response, JsonElement value, String reason) {
-        this.response = response;
-        this.value = value;
-        this.reason = reason;
+    //copy of node without the entry at keys[from..], or null when that entry does not exist
+    private static JsonElement withoutKey(JsonElement node, JsonArray keys, int from) {
+        if (!node.isJsonObject()) {
+            return null;
+        }
+        JsonObject obj = node.getAsJsonObject();
+        String k = keys.get(from).getAsString();
+        if (!obj.has(k)) {
+            return null;
+        }
+        JsonElement child;
+        if (from == keys.size() - 1) {
+            child = null;
+        } else {
+            child = withoutKey(obj.get(k), keys, from + 1);
+            if (child == null) {
+                return null;
+            }
+        }
+        JsonObject copy = shallowCopy(obj);
+        if (child == null) {
+            copy.remove(k);
+        } else {
+            copy.add(k, child);
+        }
+        return copy;
+    }
+
+    private static JsonObject shallowCopy(JsonObject obj) {
+        JsonObject copy = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+            copy.add(entry.getKey(), entry.getValue());
+        }
+        return copy;
     }
 }
 
+interface KeySpace { //top-level values, put(key, null) removes the key
+    JsonElement get(String key);
 
+    void put(String key, JsonElement value);
+}
 
+class StagedWrites implements KeySpace { //private copy of the changed top-level values of a batch
+    private final KeySpace db;
+    private final Map<String, JsonElement> changed = new HashMap<>(); //null value = deleted
 
+    StagedWrites(KeySpace db) {
+        this.db = db;
+    }
 
+    @Override
+    public JsonElement get(String key) {
+        return changed.containsKey(key) ? changed.get(key) : db.get(key);
+    }
+
+    @Override
+    public void put(String key, JsonElement value) {
+        changed.put(key, value);
+    }
+
+    void publish() {
+        changed.forEach(db::put);
+    }
+}
@@ -0,0 +1,8 @@
+package server;
+
+import java.io.IOException;
+
+//changes db and logs the change, always called with the key's stripe write lock held
+interface Mutation {
+    SendResponse apply() throws IOException;
+}
@@ -0,0 +1,378 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+//alternative front end: one selector thread owns every socket and only moves bytes, requests are handed to a small
+//worker pool. idle connections cost a few hundred bytes instead of a thread, so tens of thousands of open sessions
+//are fine and a slow client can no longer hold one of the workers hostage
+class NioServer {
+
+    private static final int READ_BUFFER = 16 * 1024;
+    private static final byte[] VALUE_PREFIX = "{\"value\":".getBytes(StandardCharsets.UTF_8);
+    private static final long PUSH_BUFFER = 64 * 1024; //queued bytes above which a watching connection gets no more notifications
+    //a session that sends requests without reading the responses is not read from while it has this many response
+    //bytes queued or this many requests waiting for a worker, so its backlog is bounded
+    private static final long RESPONSE_BUFFER = 1024 * 1024;
+    private static final int PENDING_REQUESTS = 1024;
+
+    //per connection state, only the selector thread touches the buffers, workers only touch the request queue
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        final Queue<ByteBuffer> out = new ArrayDeque<>();
+        final Queue<ReceivedRequest> requests = new ArrayDeque<>(); //guarded by this
+        boolean processing; //guarded by this, true while a worker is draining requests
+        boolean started;
+        boolean session;
+        boolean chunked; //switched on by the session handshake, see FrameCodec
+        byte[] message = new byte[0]; //chunks of the chunked message that is still arriving, reused for the next one
+        int messageLength;
+        //requests are decoded on the selector thread and responses encoded by the worker draining the connection,
+        //the two halves of the codec share nothing
+        final JsonCodec json = new JsonCodec();
+        boolean closeAfterWrite;
+        boolean exitAfterWrite;
+        final AtomicLong queuedBytes = new AtomicLong(); //encoded but not written yet, the backpressure for watches
+        boolean readPaused; //OP_READ is off until the backlog is written, see RESPONSE_BUFFER
+        Watches.Subscriber subscriber; //guarded by this, created by the first watch
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private final int port;
+    private final ExecutorService workers;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>(); //work handed back to the selector
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    NioServer(int port, int workerCount) {
+        this.port = port;
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        Main.metrics.queueDepth(((ThreadPoolExecutor) workers).getQueue()::size);
+    }
+
+    void run() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        System.out.println("Server started!");
+
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read((Connection) key.attachment());
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write((Connection) key.attachment());
+                        }
+                    } catch (IOException e) { //one broken client must not take the loop down
+                        close((Connection) key.attachment());
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown();
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            Main.metrics.connectionOpened();
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.in) < 0) {
+            close(connection);
+            return;
+        }
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (connection.chunked ? readChunk(connection, in) : readUtfFrame(connection, in)) {
+            //keep going while complete frames are buffered, the handshake may switch framing in between
+        }
+        in.compact();
+        if (!in.hasRemaining()) { //frame bigger than the buffer, grow it
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            connection.in = bigger;
+        }
+        if (connection.session && connection.key.isValid() && backlogged(connection)) {
+            connection.readPaused = true; //write() switches reading back on
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private static boolean backlogged(Connection connection) {
+        if (connection.queuedBytes.get() >= RESPONSE_BUFFER) {
+            return true;
+        }
+        synchronized (connection) {
+            return connection.requests.size() >= PENDING_REQUESTS;
+        }
+    }
+
+    //a writeUTF frame: unsigned short length followed by modified utf-8
+    private boolean readUtfFrame(Connection connection, ByteBuffer in) throws IOException {
+        if (in.remaining() < 2) {
+            return false;
+        }
+        int length = in.getShort(in.position()) & 0xFFFF;
+        if (in.remaining() < 2 + length) {
+            return false;
+        }
+        ReceivedRequest request = connection.json.readUtf(in.array(), in.arrayOffset() + in.position() + 2, length);
+        in.position(in.position() + 2 + length);
+        onRequest(connection, request);
+        return true;
+    }
+
+    //one chunk of a chunked message: int length followed by that many bytes, length 0 ends the message
+    private boolean readChunk(Connection connection, ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            return false;
+        }
+        int length = in.getInt(in.position());
+        if (length < 0) {
+            throw new IOException("Negative chunk length " + length);
+        }
+        if (length > Main.MAX_MESSAGE - connection.messageLength) {
+            throw new IOException("Message longer than " + Main.MAX_MESSAGE + " bytes");
+        }
+        if (in.remaining() - 4 < length) {
+            return false;
+        }
+        in.getInt();
+        if (length > 0) {
+            if (connection.message.length < connection.messageLength + length) {
+                connection.message = Arrays.copyOf(connection.message, Math.min(Main.MAX_MESSAGE,
+                        Math.max(connection.messageLength + length, connection.message.length * 2)));
+            }
+            in.get(connection.message, connection.messageLength, length);
+            connection.messageLength += length;
+            return true;
+        }
+        int messageLength = connection.messageLength;
+        connection.messageLength = 0;
+        onRequest(connection, connection.json.readUtf8(connection.message, 0, messageLength));
+        return true;
+    }
+
+    private void onRequest(Connection connection, ReceivedRequest request) {
+        if (!connection.started) {
+            connection.started = true;
+            if ("session".equals(request.getType())) {
+                connection.session = true;
+                send(connection, new SendResponse("OK", null, null).withId(request.getId()), false, false);
+                connection.chunked = "chunked".equals(request.getFraming()); //the ack above still goes out as writeUTF
+                return;
+            }
+        } else if (!connection.session) {
+            return; //classic connections carry exactly one request
+        }
+        if (!connection.session) {
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ); //nothing more to read
+        }
+
+        synchronized (connection) {
+            connection.requests.add(request);
+            if (connection.processing) {
+                return; //the worker already draining this connection will pick it up
+            }
+            connection.processing = true;
+        }
+        workers.submit(() -> drain(connection));
+    }
+
+    //runs on a worker, processes the requests of one connection strictly in order so pipelined
+    //set-then-get from the same client behaves exactly like on the blocking front end
+    private void drain(Connection connection) {
+        while (true) {
+            ReceivedRequest request;
+            synchronized (connection) {
+                request = connection.requests.poll();
+                if (request == null) {
+                    connection.processing = false;
+                    return;
+                }
+            }
+            boolean exit = "exit".equals(request.getType());
+            Supplier<Watches.Subscriber> subscriber = connection.session ? () -> subscriber(connection) : null;
+            SendResponse response;
+            try {
+                response = exit ? new SendResponse("OK", null, null) : Main.process(request, subscriber);
+            } catch (Exception e) {
+                e.printStackTrace();
+                response = new SendResponse("ERROR", null, null);
+            }
+            //the selector loop stops once the exit response is flushed
+            send(connection, response.withId(request.getId()), !connection.session || exit, exit);
+            Main.responded(request, response, subscriber);
+        }
+    }
+
+    private Watches.Subscriber subscriber(Connection connection) {
+        synchronized (connection) {
+            if (connection.subscriber == null) {
+                connection.subscriber = Main.watches.subscribe(new Watches.Sink() {
+                    public boolean ready() {
+                        return connection.queuedBytes.get() < PUSH_BUFFER && connection.channel.isOpen();
+                    }
+
+                    public void push(SendResponse notification) {
+                        send(connection, notification, false, false);
+                    }
+                });
+                if (!connection.channel.isOpen()) {
+                    Main.watches.close(connection.subscriber); //close() already ran, nobody else will
+                }
+            }
+            return connection.subscriber;
+        }
+    }
+
+    //encodes on the calling thread, the selector thread does the actual socket write. the lock is only ever contended
+    //by the watch dispatcher pushing a notification while a worker answers a request
+    private void send(Connection connection, SendResponse response, boolean closeAfter, boolean exitAfter) {
+        List<ByteBuffer> frames = new ArrayList<>(3);
+        long start = ServerMetrics.sample();
+        JsonCodec json = connection.json;
+        synchronized (json) {
+            try {
+                if (connection.chunked && response.rawValue != null) {
+                    //an off-heap value is its own chunk, the socket is written straight from the direct buffer
+                    ByteBuffer head = ByteBuffer.allocate(4 + VALUE_PREFIX.length + 4);
+                    head.putInt(VALUE_PREFIX.length).put(VALUE_PREFIX).putInt(response.rawValue.remaining()).flip();
+                    frames.add(head);
+                    frames.add(response.rawValue.duplicate());
+                    frames.add(lastChunk(json.writeUtf8(response, true), json.frameLength()));
+                } else if (connection.chunked) {
+                    frames.add(lastChunk(json.writeUtf8(response, false), json.frameLength()));
+                } else {
+                    frames.add(ByteBuffer.wrap(Arrays.copyOf(json.writeUtfFrame(response), json.frameLength())));
+                }
+            } catch (IOException e) {
+                System.err.println("Could not encode response: " + e.getMessage());
+                selectorTasks.add(() -> close(connection));
+                selector.wakeup();
+                return;
+            }
+        }
+        Main.metrics.serialize.since(start);
+        connection.queuedBytes.addAndGet(frames.stream().mapToLong(ByteBuffer::remaining).sum());
+        selectorTasks.add(() -> {
+            connection.out.addAll(frames);
+            connection.closeAfterWrite |= closeAfter;
+            connection.exitAfterWrite |= exitAfter;
+            if (connection.key.isValid()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        });
+        selector.wakeup();
+    }
+
+    //length, bytes and the 0 chunk that ends the message. the bytes are copied, the codec reuses its buffer
+    private static ByteBuffer lastChunk(byte[] bytes, int length) {
+        ByteBuffer chunk = ByteBuffer.allocate(4 + length + 4);
+        chunk.putInt(length).put(bytes, 0, length).putInt(0).flip();
+        return chunk;
+    }
+
+    private void write(Connection connection) throws IOException {
+        ByteBuffer frame;
+        while ((frame = connection.out.peek()) != null) {
+            long start = ServerMetrics.sample();
+            connection.queuedBytes.addAndGet(-connection.channel.write(frame));
+            Main.metrics.socketWrite.since(start);
+            if (frame.hasRemaining()) {
+                return; //socket buffer full, wait for the next OP_WRITE
+            }
+            connection.out.poll();
+        }
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+        Watches.Subscriber subscriber;
+        synchronized (connection) {
+            subscriber = connection.subscriber;
+        }
+        if (subscriber != null) {
+            subscriber.ready(); //drained, room for more notifications
+        }
+        //every request gets a response, so a connection paused for its waiting requests also gets here again
+        if (connection.readPaused && !backlogged(connection)) {
+            connection.readPaused = false;
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+        }
+        if (connection.closeAfterWrite) {
+            close(connection);
+        }
+        if (connection.exitAfterWrite) {
+            running = false;
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection == null || !connection.channel.isOpen()) {
+            return; //not a client, or already closed
+        }
+        Main.metrics.connectionClosed();
+        synchronized (connection) {
+            if (connection.subscriber != null) {
+                Main.watches.close(connection.subscriber);
+            }
+        }
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,84 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//optional flattened view of the database: every node is reachable by its full key path in one hash lookup instead
+//of one JsonObject lookup per level. kept up to date by diffing the old and new version of a top-level value, which
+//is cheap because writes copy only the objects along their path and share everything else by reference
+//
+//the paths are the key names joined with \0, so ["a","b"] and ["a\u0000b"] would clash. Main.isKey turns away key names
+//with a \0 in them
+class PathIndex {
+
+    private static final char SEPARATOR = '\0';
+
+    private final Map<String, JsonElement> nodes = new ConcurrentHashMap<>();
+
+    //null when the path does not exist, keys must not be empty
+    JsonElement get(JsonArray keys) {
+        return nodes.get(path(keys));
+    }
+
+    //called after a top-level value was replaced, after is null when the key was removed. a reader racing this sees
+    //every single path either before or after the write, the same as a get racing a write without the index
+    void update(String topKey, JsonElement before, JsonElement after) {
+        update(topKey, before, after, true);
+    }
+
+    private void update(String path, JsonElement before, JsonElement after, boolean top) {
+        if (before == after) {
+            return; //shared subtree, nothing below it changed either
+        }
+        if (after == null) {
+            remove(path, before);
+            return;
+        }
+        JsonObject old = before != null && before.isJsonObject() ? before.getAsJsonObject() : null;
+        JsonObject now = after.isJsonObject() ? after.getAsJsonObject() : null;
+        if (now != null) {
+            for (Map.Entry<String, JsonElement> child : now.entrySet()) {
+                update(path + SEPARATOR + child.getKey(), old == null ? null : old.get(child.getKey()), child.getValue(), false);
+            }
+        }
+        if (old != null) {
+            for (Map.Entry<String, JsonElement> child : old.entrySet()) {
+                if (now == null || !now.has(child.getKey())) {
+                    remove(path + SEPARATOR + child.getKey(), child.getValue());
+                }
+            }
+        }
+        if (!top) {
+            nodes.put(path, after); //top-level values are looked up in db itself
+        }
+    }
+
+    private void remove(String path, JsonElement node) {
+        if (node.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> child : node.getAsJsonObject().entrySet()) {
+                remove(path + SEPARATOR + child.getKey(), child.getValue());
+            }
+        }
+        nodes.remove(path);
+    }
+
+    void clear() {
+        nodes.clear();
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    static String path(JsonArray keys) {
+        StringBuilder path = new StringBuilder(keys.get(0).getAsString());
+        for (int i = 1; i < keys.size(); i++) {
+            path.append(SEPARATOR).append(keys.get(i).getAsString());
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package server;
+
+import com.google.gson.JsonElement;
+
+import java.util.List;
+
+//to deserialize json to ReceivedRequest object
+class ReceivedRequest {
+    String type;
+    JsonElement key;
+    JsonElement value;
+    JsonElement id; //only sent in session mode, echoed back so pipelined responses can be matched
+    List<ReceivedRequest> requests; //the entries of mget, mset, mdelete and transaction
+    JsonElement expected; //cas only, the value the key must currently have
+    JsonElement field; //createIndex, dropIndex and query: path of the indexed field inside each record
+    String kind; //createIndex: "hash" (default) or "sorted"
+    JsonElement from; //query range, inclusive
+    JsonElement to; //query range, exclusive
+    Integer limit; //query and scan: at most this many records
+    String start; //scan: first key, inclusive
+    String prefix; //scan: only keys starting with this
+    String cursor; //scan: the cursor of the previous page
+    Long after; //reads on a follower: the "seq" of a write on the leader that has to be applied first
+    Long ttlMs; //set, cas and incr (also inside batches): delete the key this many ms from now, see Expiries
+    String framing; //only on the session handshake, "chunked" lifts the 64 KB writeUTF limit
+
+    public ReceivedRequest(String type, JsonElement key, JsonElement value) {
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    protected String getType() {
+        return this.type;
+    }
+
+    protected JsonElement getKey() {
+        return this.key;
+    }
+
+    protected JsonElement getValue() {
+        return this.value;
+    }
+
+    protected JsonElement getId() {
+        return this.id;
+    }
+
+    protected String getFraming() {
+        return this.framing;
+    }
+
+    protected List<ReceivedRequest> getRequests() {
+        return this.requests;
+    }
+
+    protected JsonElement getExpected() {
+        return this.expected;
+    }
+
+    protected JsonElement getField() {
+        return this.field;
+    }
+
+    protected String getKind() {
+        return this.kind;
+    }
+
+    protected JsonElement getFrom() {
+        return this.from;
+    }
+
+    protected JsonElement getTo() {
+        return this.to;
+    }
+
+    protected Integer getLimit() {
+        return this.limit;
+    }
+
+    protected String getStart() {
+        return this.start;
+    }
+
+    protected String getPrefix() {
+        return this.prefix;
+    }
+
+    protected String getCursor() {
+        return this.cursor;
+    }
+
+    protected Long getAfter() {
+        return this.after;
+    }
+
+    protected Long getTtlMs() {
+        return this.ttlMs;
+    }
+}
@@ -0,0 +1,238 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+//leader side of replication: every mutation Main logs is also numbered and kept in an in-memory backlog, and every
+//follower connected to the replication port gets them shipped in order. a follower that (re)connects says which
+//leader and sequence number it has, if that is still in the backlog it continues from there, otherwise it first gets
+//a point-in-time snapshot of the whole database. one thread per follower streams, one reads its acks
+//
+//the messages are chunked json (see ChunkedOutputStream):
+//  follower -> leader  {"leader":<id or null>,"since":<seq>} once, then {"ack":<applied seq>} from time to time
+//  leader -> follower  {"leader":<id>,"seq":<seq>[,"snapshot":{...}]} once, then {"records":[...]} or {"seq":<seq>}
+//                      (a heartbeat while there is nothing to ship)
+class ReplicationLog {
+
+    interface SnapshotSource {
+        //the whole database and the last sequence number it contains, taken while no mutation can be logged
+        Snapshot capture() throws IOException;
+    }
+
+    static class Snapshot {
+        final JsonObject root;
+        final long seq;
+
+        Snapshot(JsonObject root, long seq) {
+            this.root = root;
+            this.seq = seq;
+        }
+    }
+
+    private static final Gson gson = new Gson();
+    private static final long HEARTBEAT_MS = 200;
+    private static final int MAX_BATCH = 1024; //records per message
+
+    private final String leaderId = UUID.randomUUID().toString(); //a restarted leader starts counting at 0 again
+    private final int port;
+    private final SnapshotSource snapshots;
+    private final LogRecord[] backlog; //guarded by this, record n is at n % length, the last length records are kept
+    private long lastSeq; //guarded by this
+    private final Map<String, FollowerState> followers = new ConcurrentHashMap<>();
+
+    private static class FollowerState {
+        final long connectedAt = System.currentTimeMillis();
+        volatile long sentSeq;
+        volatile long ackedSeq;
+    }
+
+    ReplicationLog(int port, int capacity, SnapshotSource snapshots) {
+        this.port = port;
+        this.backlog = new LogRecord[Math.max(1, capacity)];
+        this.snapshots = snapshots;
+    }
+
+    //called by the writer while it holds its stripes' write locks, so the order here is an order that was possible
+    synchronized void append(String op, JsonElement key, JsonElement value, Long expiresAt) {
+        LogRecord record = new LogRecord(lastSeq + 1, op, key, value);
+        record.expiresAt = expiresAt;
+        add(record);
+    }
+
+    synchronized void appendBatch(List<LogRecord> ops) {
+        LogRecord batch = new LogRecord(lastSeq + 1, "batch", null, null);
+        batch.ops = ops;
+        add(batch);
+    }
+
+    private void add(LogRecord record) {
+        lastSeq = record.seq;
+        backlog[(int) (record.seq % backlog.length)] = record; //a follower that still needs the old one has to resync
+        notifyAll();
+    }
+
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    //the records after seq, waiting up to timeoutMs for the first one. empty when nothing came in, null when the
+    //records after seq have already left the backlog
+    private synchronized List<LogRecord> after(long seq, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long left;
+        while (lastSeq <= seq && (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+        if (lastSeq <= seq) {
+            return List.of();
+        }
+        if (seq < lastSeq - backlog.length) {
+            return null;
+        }
+        List<LogRecord> records = new ArrayList<>();
+        for (long next = seq + 1; next <= lastSeq && records.size() < MAX_BATCH; next++) {
+            records.add(backlog[(int) (next % backlog.length)]);
+        }
+        return records;
+    }
+
+    void start() throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread sender = new Thread(() -> serve(socket), "replication-" + socket.getRemoteSocketAddress());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    System.err.println("Replication accept failed: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Replication log on port " + port);
+    }
+
+    private void serve(Socket socket) {
+        String follower = socket.getRemoteSocketAddress().toString();
+        FollowerState state = new FollowerState();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            ChunkedInputStream input = new ChunkedInputStream(new BufferedInputStream(socket.getInputStream()));
+            ChunkedOutputStream output = new ChunkedOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+
+            JsonObject hello = read(input);
+            String knownLeader = hello.has("leader") && !hello.get("leader").isJsonNull() ? hello.get("leader").getAsString() : null;
+            long since = hello.has("since") ? hello.get("since").getAsLong() : 0;
+
+            JsonObject welcome = new JsonObject();
+            welcome.addProperty("leader", leaderId);
+            List<LogRecord> pending = leaderId.equals(knownLeader) ? after(since, 0) : null;
+            if (pending == null) { //new follower, another leader's data, or too far behind: start over
+                Snapshot snapshot = snapshots.capture();
+                since = snapshot.seq;
+                welcome.add("snapshot", snapshot.root);
+            }
+            welcome.addProperty("seq", since);
+            write(writer, output, welcome);
+            state.sentSeq = since;
+            state.ackedSeq = since;
+            followers.put(follower, state);
+
+            Thread acks = new Thread(() -> readAcks(input, state, socket), "replication-acks-" + follower);
+            acks.setDaemon(true);
+            acks.start();
+
+            while (!socket.isClosed()) {
+                List<LogRecord> records = after(state.sentSeq, HEARTBEAT_MS);
+                if (records == null) {
+                    System.err.println("Follower " + follower + " fell behind the replication backlog, it has to resync");
+                    return;
+                }
+                JsonObject message = new JsonObject();
+                if (records.isEmpty()) {
+                    message.addProperty("seq", lastSeq());
+                } else {
+                    JsonArray batch = new JsonArray();
+                    records.forEach(record -> batch.add(gson.toJsonTree(record)));
+                    message.add("records", batch);
+                }
+                write(writer, output, message);
+                if (!records.isEmpty()) {
+                    state.sentSeq = records.get(records.size() - 1).seq;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Follower " + follower + " disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(follower, state);
+        }
+    }
+
+    private void readAcks(ChunkedInputStream input, FollowerState state, Socket socket) {
+        try {
+            while (true) {
+                JsonObject ack = read(input);
+                if (ack.has("ack")) {
+                    state.ackedSeq = ack.get("ack").getAsLong();
+                }
+            }
+        } catch (IOException e) {
+            try {
+                socket.close(); //stops the sender too
+            } catch (IOException ignored) { }
+        }
+    }
+
+    static JsonObject read(ChunkedInputStream input) throws IOException {
+        input.nextMessage();
+        return JsonParser.parseReader(new JsonReader(new InputStreamReader(input, StandardCharsets.UTF_8))).getAsJsonObject();
+    }
+
+    static void write(Writer writer, ChunkedOutputStream output, JsonObject message) throws IOException {
+        gson.toJson(message, writer);
+        writer.flush();
+        output.endMessage();
+    }
+
+    JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        long seq = lastSeq();
+        json.addProperty("role", "leader");
+        json.addProperty("leader", leaderId);
+        json.addProperty("seq", seq);
+        json.addProperty("backlog", Math.min(seq, backlog.length));
+        JsonArray list = new JsonArray();
+        followers.forEach((address, state) -> {
+            JsonObject follower = new JsonObject();
+            follower.addProperty("address", address);
+            follower.addProperty("connectedMs", System.currentTimeMillis() - state.connectedAt);
+            follower.addProperty("sentSeq", state.sentSeq);
+            follower.addProperty("ackedSeq", state.ackedSeq);
+            follower.addProperty("lagRecords", seq - state.ackedSeq);
+            list.add(follower);
+        });
+        json.add("followers", list);
+        return json;
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+//already serialized get results for hot key paths, so a repeated get is a map lookup instead of a traverse plus
+//gson.toJson. entries are keyed by the same \0 joined paths as PathIndex and hold the value's json bytes. a write to a
+//path drops the cached path itself, its ancestors (their value contains it) and its descendants (they are inside it)
+//
+//a reader that started before a write could otherwise put the old value back after the write invalidated it, so
+//every put brings the version it saw before reading the database and is ignored if any write happened since
+class ResponseCache {
+
+    private static final char SEPARATOR = '\0';
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final ServerMetrics metrics;
+
+    //all guarded by this. lru is in access order, sorted finds the descendants of a path
+    private final LinkedHashMap<String, byte[]> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private final TreeMap<String, byte[]> sorted = new TreeMap<>();
+    private long bytes;
+    private long version;
+
+    ResponseCache(int maxEntries, long maxBytes, ServerMetrics metrics) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.max(1, maxBytes / 8); //one huge value must not flush everything else out
+        this.metrics = metrics;
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    synchronized byte[] get(String path) {
+        byte[] json = lru.get(path);
+        if (json == null) {
+            metrics.recordCacheMiss();
+        } else {
+            metrics.recordCacheHit();
+        }
+        return json;
+    }
+
+    synchronized void put(String path, byte[] json, long seenVersion) {
+        if (seenVersion != version || json.length > maxEntryBytes || lru.containsKey(path)) {
+            return;
+        }
+        lru.put(path, json);
+        sorted.put(path, json);
+        bytes += json.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = lru.entrySet().iterator();
+        while (lru.size() > maxEntries || bytes > maxBytes) {
+            Map.Entry<String, byte[]> evicted = eldest.next();
+            eldest.remove();
+            sorted.remove(evicted.getKey());
+            bytes -= evicted.getValue().length;
+            metrics.recordCacheEviction();
+        }
+    }
+
+    //called by every write after it changed the database and before it answers
+    synchronized void invalidate(String path) {
+        version++;
+        //ancestors, including the top-level key
+        for (int i = path.indexOf(SEPARATOR); i >= 0; i = path.indexOf(SEPARATOR, i + 1)) {
+            remove(path.substring(0, i));
+        }
+        remove(path);
+        //descendants: everything that starts with path + \0
+        Iterator<String> below = sorted.subMap(path + SEPARATOR, path + (char) (SEPARATOR + 1)).keySet().iterator();
+        while (below.hasNext()) {
+            String key = below.next();
+            below.remove();
+            bytes -= lru.remove(key).length;
+            metrics.recordCacheInvalidation();
+        }
+    }
+
+    private void remove(String path) {
+        byte[] json = lru.remove(path);
+        if (json != null) {
+            sorted.remove(path);
+            bytes -= json.length;
+            metrics.recordCacheInvalidation();
+        }
+    }
+
+    synchronized int size() {
+        return lru.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+}
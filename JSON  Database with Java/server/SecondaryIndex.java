@@ -0,0 +1,160 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+//the entries of one index, kept up to date by SecondaryIndexes.update
+class SecondaryIndex {
+
+    //numbers first (by value), then strings, then booleans. only primitives are indexed
+    static final Comparator<JsonElement> ORDER = Comparator
+            .comparingInt(SecondaryIndex::rank)
+            .thenComparing((a, b) -> {
+                JsonPrimitive x = a.getAsJsonPrimitive();
+                JsonPrimitive y = b.getAsJsonPrimitive();
+                if (x.isNumber()) {
+                    return x.getAsBigDecimal().compareTo(y.getAsBigDecimal());
+                }
+                if (x.isBoolean()) {
+                    return Boolean.compare(x.getAsBoolean(), y.getAsBoolean());
+                }
+                return x.getAsString().compareTo(y.getAsString());
+            });
+
+    final JsonArray collection;
+    final JsonArray field;
+    final boolean sorted;
+    private final Map<JsonElement, Set<String>> entries; //field value -> keys of the records that have it
+
+    SecondaryIndex(JsonArray collection, JsonArray field, boolean sorted) {
+        this.collection = collection;
+        this.field = field;
+        this.sorted = sorted;
+        this.entries = sorted ? new ConcurrentSkipListMap<>(ORDER) : new ConcurrentHashMap<>();
+    }
+
+    //record keys whose field equals value. may contain keys that changed a moment ago, callers re-check the record
+    Set<String> equalTo(JsonElement value) {
+        JsonElement key = normalize(value);
+        Set<String> keys = key == null ? null : entries.get(key);
+        return keys == null ? Set.of() : keys;
+    }
+
+    //record keys in field order for from <= field < to, either bound may be null. sorted indexes only
+    List<String> range(JsonElement from, JsonElement to) {
+        NavigableMap<JsonElement, Set<String>> map = (NavigableMap<JsonElement, Set<String>>) entries;
+        JsonElement low = normalize(from);
+        JsonElement high = normalize(to);
+        if (low != null && high != null) {
+            map = ORDER.compare(low, high) < 0 ? map.subMap(low, true, high, false) : new ConcurrentSkipListMap<>(ORDER);
+        } else if (low != null) {
+            map = map.tailMap(low, true);
+        } else if (high != null) {
+            map = map.headMap(high, false);
+        }
+        List<String> keys = new ArrayList<>();
+        map.values().forEach(keys::addAll);
+        return keys;
+    }
+
+    //writers of different top-level keys can update a root collection index at the same time, this keeps a key
+    //from being added to an entry set that a concurrent remove just dropped from the map. readers never lock
+    synchronized void build(Iterable<Map.Entry<String, JsonElement>> records) {
+        for (Map.Entry<String, JsonElement> record : records) {
+            add(record.getKey(), record.getValue());
+        }
+    }
+
+    synchronized void update(String topKey, JsonElement before, JsonElement after) {
+        if (collection.isEmpty()) {
+            if (before != after) {
+                remove(topKey, before);
+                add(topKey, after);
+            }
+            return;
+        }
+        if (!collection.get(0).getAsString().equals(topKey)) {
+            return;
+        }
+        JsonObject oldRecords = collectionOf(collection, before);
+        JsonObject newRecords = collectionOf(collection, after);
+        if (oldRecords == newRecords) {
+            return; //the write did not touch this collection, it is shared with the old version
+        }
+        Set<String> keys = new HashSet<>();
+        if (oldRecords != null) {
+            keys.addAll(oldRecords.keySet());
+        }
+        if (newRecords != null) {
+            keys.addAll(newRecords.keySet());
+        }
+        for (String key : keys) {
+            JsonElement oldRecord = oldRecords == null ? null : oldRecords.get(key);
+            JsonElement newRecord = newRecords == null ? null : newRecords.get(key);
+            if (oldRecord != newRecord) {
+                remove(key, oldRecord);
+                add(key, newRecord);
+            }
+        }
+    }
+
+    //the collection inside a top-level value, null when it is missing or not an object
+    static JsonObject collectionOf(JsonArray collection, JsonElement top) {
+        JsonElement node = top;
+        for (int i = 1; node != null && i < collection.size(); i++) {
+            node = node.isJsonObject() ? node.getAsJsonObject().get(collection.get(i).getAsString()) : null;
+        }
+        return node != null && node.isJsonObject() ? node.getAsJsonObject() : null;
+    }
+
+    //the indexed value of a record, null when the record does not have the field or it is not a primitive
+    static JsonElement fieldOf(JsonArray field, JsonElement record) {
+        if (record == null) {
+            return null;
+        }
+        return normalize(Main.traverse(record, field));
+    }
+
+    private void add(String key, JsonElement record) {
+        JsonElement value = fieldOf(field, record);
+        if (value != null) {
+            entries.computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    private void remove(String key, JsonElement record) {
+        JsonElement value = fieldOf(field, record);
+        if (value != null) {
+            entries.computeIfPresent(value, (v, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    //1, 1.0 and a BigInteger 1 from incr must all land on the same entry
+    static JsonElement normalize(JsonElement value) {
+        if (value == null || !value.isJsonPrimitive()) {
+            return null;
+        }
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        return primitive.isNumber() ? new JsonPrimitive(primitive.getAsBigDecimal().stripTrailingZeros()) : primitive;
+    }
+
+    private static int rank(JsonElement value) {
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        return primitive.isNumber() ? 0 : primitive.isString() ? 1 : 2;
+    }
+}
@@ -0,0 +1,115 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+//indexes on a field of the records of a collection, e.g. collection ["users"] and field ["status"] indexes
+//users.*.status. the collection [] means the top-level keys themselves are the records. "hash" indexes answer
+//equality queries, "sorted" indexes equality and ranges. the definitions are kept in indexes.json next to db.json,
+//the entries themselves are rebuilt from the data at startup
+class SecondaryIndexes {
+
+    private static final Gson gson = new Gson();
+
+    private final File file;
+    private final List<SecondaryIndex> indexes = new CopyOnWriteArrayList<>();
+
+    SecondaryIndexes(File file) {
+        this.file = file;
+    }
+
+    //definitions only, call build() on each once the data is loaded
+    List<SecondaryIndex> load() throws IOException {
+        if (!file.exists()) {
+            return List.of();
+        }
+        List<IndexDefinition> definitions = gson.fromJson(Files.readString(file.toPath()),
+                new TypeToken<List<IndexDefinition>>() { }.getType());
+        List<SecondaryIndex> loaded = new ArrayList<>();
+        for (IndexDefinition definition : definitions == null ? List.<IndexDefinition>of() : definitions) {
+            loaded.add(new SecondaryIndex(definition.key, definition.field, "sorted".equals(definition.kind)));
+        }
+        return loaded;
+    }
+
+    //the caller holds the write lock of the collection's stripes, so no writer can slip in between building
+    //the entries and the index being visible to updates. false when the same index is already there, checked under
+    //our lock so two concurrent creates of one index can not both get in
+    synchronized boolean add(SecondaryIndex index, Iterable<Map.Entry<String, JsonElement>> records) throws IOException {
+        for (SecondaryIndex existing : indexes) {
+            if (existing.collection.equals(index.collection) && existing.field.equals(index.field)
+                    && existing.sorted == index.sorted) {
+                return false;
+            }
+        }
+        index.build(records);
+        indexes.add(index);
+        save();
+        return true;
+    }
+
+    //kind null drops both the hash and the sorted index of the field
+    synchronized boolean remove(JsonArray collection, JsonArray field, String kind) throws IOException {
+        boolean removed = indexes.removeIf(index -> index.collection.equals(collection) && index.field.equals(field)
+                && (kind == null || index.sorted == "sorted".equals(kind)));
+        if (removed) {
+            save();
+        }
+        return removed;
+    }
+
+    //the best index for a query, a sorted one when a range is asked for
+    SecondaryIndex find(JsonArray collection, JsonArray field, boolean needsSorted) {
+        SecondaryIndex best = null;
+        for (SecondaryIndex index : indexes) {
+            if (index.collection.equals(collection) && index.field.equals(field) && (index.sorted || !needsSorted)) {
+                if (best == null || (!index.sorted && best.sorted)) {
+                    best = index; //hash lookups are cheaper when either would do
+                }
+            }
+        }
+        return best;
+    }
+
+    //called whenever a top-level value is replaced, after is null when the key was removed
+    void update(String topKey, JsonElement before, JsonElement after) {
+        for (SecondaryIndex index : indexes) {
+            index.update(topKey, before, after);
+        }
+    }
+
+    boolean isEmpty() {
+        return indexes.isEmpty();
+    }
+
+    private void save() throws IOException {
+        List<IndexDefinition> definitions = new ArrayList<>();
+        for (SecondaryIndex index : indexes) {
+            definitions.add(new IndexDefinition(index.collection, index.field, index.sorted ? "sorted" : "hash"));
+        }
+        AtomicFile.write(file, out -> out.write(gson.toJson(definitions).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static class IndexDefinition {
+        JsonArray key;
+        JsonArray field;
+        String kind;
+
+        IndexDefinition(JsonArray key, JsonArray field, String kind) {
+            this.key = key;
+            this.field = field;
+            this.kind = kind;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package server;
+
+import com.google.gson.JsonElement;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+//serialize SendResponse object to json and send
+class SendResponse {
+    String response;
+    JsonElement value;
+    String reason;
+    JsonElement id;
+    List<SendResponse> results; //one per entry of a batch request
+    String cursor; //scan: pass it back to get the next page, null on the last one
+    Long seq; //writes on a leader: the replication sequence number that includes this write. notifications: see Watches
+    JsonElement watch; //notifications only: the id of the watch request they belong to
+    JsonElement key; //notifications only: the watched path
+    Boolean deleted; //notifications only: the watched path does not exist (any more)
+    transient ByteBuffer rawValue; //an off-heap value that is already json, FrameCodec writes it in place of value
+
+    public SendResponse(String response, JsonElement value, String reason) {
+        this.response = response;
+        this.value = value;
+        this.reason = reason;
+    }
+
+    SendResponse withId(JsonElement id) {
+        this.id = id;
+        return this;
+    }
+
+    SendResponse withResults(List<SendResponse> results) {
+        this.results = results;
+        return this;
+    }
+
+    SendResponse withRawValue(ByteBuffer rawValue) {
+        this.rawValue = rawValue;
+        return this;
+    }
+
+    SendResponse withCursor(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    SendResponse withSeq(long seq) {
+        this.seq = seq;
+        return this;
+    }
+
+    SendResponse withNotification(JsonElement watch, JsonElement key, boolean deleted) {
+        this.watch = watch;
+        this.key = key;
+        this.deleted = deleted ? Boolean.TRUE : null;
+        return this;
+    }
+}
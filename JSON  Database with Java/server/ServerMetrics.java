@@ -0,0 +1,196 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+//counters the server keeps about itself, cheap enough to update on every request. a timing costs two nanoTime() calls
+//(~45 ns each on a VM) and an atomic increment, about a third of an in-memory get, so the stages every request goes
+//through are timed for one request in jsondb.metrics.sampleEvery (16) only. the slow ones (fsync, snapshot writes,
+//waiting for durability) are always timed. -Djsondb.metrics=false turns timing off, the counters stay
+class ServerMetrics {
+
+    static final boolean TIMING = !"false".equals(System.getProperty("jsondb.metrics"));
+    private static final int SAMPLE_EVERY = Math.max(1, Integer.getInteger("jsondb.metrics.sampleEvery", 16));
+
+    //request types that get their own row in "requests", everything else is counted as "other"
+    private static final String[] REQUEST_TYPES = {"get", "set", "delete", "cas", "incr", "mget", "mset", "mdelete",
+            "transaction", "scan", "query", "createIndex", "dropIndex", "stats", "other"};
+
+    //batch sizes are bucketed by powers of two: [1], [2,3], [4,7], [8,15] ...
+    private static final int BATCH_BUCKETS = 16;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedWrites = new LongAdder();
+    private final AtomicLong maxBatch = new AtomicLong();
+    private final LongAdder[] batchSizes = new LongAdder[BATCH_BUCKETS];
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheEvictions = new LongAdder();
+    private final LongAdder cacheInvalidations = new LongAdder();
+
+    //where the time of a request goes, each one records a single stage
+    final LatencyRecorder lockWait = new LatencyRecorder();
+    final LatencyRecorder traverse = new LatencyRecorder();
+    final LatencyRecorder fsync = new LatencyRecorder();
+    final LatencyRecorder snapshotWrite = new LatencyRecorder();
+    final LatencyRecorder durableWait = new LatencyRecorder();
+    final LatencyRecorder serialize = new LatencyRecorder();
+    final LatencyRecorder socketWrite = new LatencyRecorder();
+
+    private final Map<String, RequestStats> requests = new LinkedHashMap<>(); //filled once, only read afterwards
+    private final AtomicLong connections = new AtomicLong();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private volatile IntSupplier queueDepth = () -> 0;
+    private final long startedAt = System.currentTimeMillis();
+
+    ServerMetrics() {
+        for (int i = 0; i < BATCH_BUCKETS; i++) {
+            batchSizes[i] = new LongAdder();
+        }
+        for (String type : REQUEST_TYPES) {
+            requests.put(type, new RequestStats());
+        }
+    }
+
+    //start of a timed stage, pass it to LatencyRecorder.since()
+    static long now() {
+        return TIMING ? System.nanoTime() : 0;
+    }
+
+    //like now() but only for one call in SAMPLE_EVERY, 0 (not timed) for the others
+    static long sample() {
+        return TIMING && (SAMPLE_EVERY == 1 || ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0)
+                ? System.nanoTime() : 0;
+    }
+
+    void recordRequest(String type, long start, boolean ok) {
+        RequestStats stats = requests.get(type);
+        if (stats == null) {
+            stats = requests.get("other");
+        }
+        if (start != 0) {
+            stats.latency.record(System.nanoTime() - start);
+        } else {
+            stats.untimed.increment();
+        }
+        if (!ok) {
+            stats.errors.increment();
+        }
+    }
+
+    void connectionOpened() {
+        connections.incrementAndGet();
+        connectionsAccepted.increment();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    //the front end tells us how to read its executor's backlog
+    void queueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    void recordBatch(int size) {
+        batches.increment();
+        batchedWrites.add(size);
+        maxBatch.accumulateAndGet(size, Math::max);
+        int bucket = Math.min(BATCH_BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(Math.max(1, size)));
+        batchSizes[bucket].increment();
+    }
+
+    void recordCacheHit() {
+        cacheHits.increment();
+    }
+
+    void recordCacheMiss() {
+        cacheMisses.increment();
+    }
+
+    void recordCacheEviction() {
+        cacheEvictions.increment();
+    }
+
+    void recordCacheInvalidation() {
+        cacheInvalidations.increment();
+    }
+
+    JsonObject toJson() {
+        JsonObject commit = new JsonObject();
+        long count = batches.sum();
+        long writes = batchedWrites.sum();
+        commit.addProperty("batches", count);
+        commit.addProperty("writes", writes);
+        commit.addProperty("avgBatchSize", count == 0 ? 0 : (double) writes / count);
+        commit.addProperty("maxBatchSize", maxBatch.get());
+        JsonArray histogram = new JsonArray();
+        for (int i = 0; i < BATCH_BUCKETS; i++) {
+            long n = batchSizes[i].sum();
+            if (n > 0) {
+                JsonObject bucket = new JsonObject();
+                bucket.addProperty("from", 1L << i);
+                bucket.addProperty("to", (1L << (i + 1)) - 1);
+                bucket.addProperty("count", n);
+                histogram.add(bucket);
+            }
+        }
+        commit.add("batchSizes", histogram);
+
+        JsonObject cache = new JsonObject();
+        long hits = cacheHits.sum();
+        long lookups = hits + cacheMisses.sum();
+        cache.addProperty("hits", hits);
+        cache.addProperty("misses", lookups - hits);
+        cache.addProperty("hitRatio", lookups == 0 ? 0 : (double) hits / lookups);
+        cache.addProperty("evictions", cacheEvictions.sum());
+        cache.addProperty("invalidations", cacheInvalidations.sum());
+
+        JsonObject perType = new JsonObject();
+        requests.forEach((type, stats) -> {
+            long requestCount = stats.latency.count() + stats.untimed.sum(); //exact, the latencies are sampled
+            if (requestCount > 0) {
+                JsonObject row = stats.latency.count() > 0 ? stats.latency.toJson() : new JsonObject();
+                row.addProperty("count", requestCount);
+                row.addProperty("errors", stats.errors.sum());
+                perType.add(type, row);
+            }
+        });
+
+        JsonObject json = new JsonObject();
+        json.addProperty("uptimeMs", System.currentTimeMillis() - startedAt);
+        json.addProperty("connections", connections.get());
+        json.addProperty("connectionsAccepted", connectionsAccepted.sum());
+        json.addProperty("executorQueue", queueDepth.getAsInt());
+        json.add("requests", perType);
+        if (TIMING) {
+            json.addProperty("sampleEvery", SAMPLE_EVERY); //the counts of the per-request stages are samples
+            JsonObject timings = new JsonObject();
+            timings.add("lockWait", lockWait.toJson());
+            timings.add("traverse", traverse.toJson());
+            timings.add("fsync", fsync.toJson());
+            timings.add("snapshotWrite", snapshotWrite.toJson());
+            timings.add("durableWait", durableWait.toJson());
+            timings.add("serialize", serialize.toJson());
+            timings.add("socketWrite", socketWrite.toJson());
+            json.add("timings", timings);
+        }
+        json.add("groupCommit", commit);
+        json.add("responseCache", cache);
+        return json;
+    }
+
+    private static class RequestStats {
+        final LatencyRecorder latency = new LatencyRecorder();
+        final LongAdder untimed = new LongAdder(); //requests that were not sampled
+        final LongAdder errors = new LongAdder();
+    }
+}
@@ -0,0 +1,72 @@
+package server;
+
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//background thread that folds the write-ahead log back into db.json. the point-in-time copy is taken by the
+//SnapshotSource while writers are paused, everything slow (serializing, writing, fsync) happens here without locks
+class SnapshotCompactor {
+
+    interface SnapshotSource {
+        JsonObject capture() throws IOException; //copy db and rotate the log in the same critical section
+    }
+
+    private static final long CHECK_EVERY_MS = 1000;
+
+    private final WriteAheadLog wal;
+    private final File snapshotFile;
+    private final StorageFormat format;
+    private final SnapshotSource source;
+    private final long intervalMs;
+    private final long maxLogBytes;
+    private volatile long lastCompaction = System.currentTimeMillis();
+    private volatile long lastCompactedSeq;
+
+    SnapshotCompactor(WriteAheadLog wal, File snapshotFile, StorageFormat format, SnapshotSource source,
+                      long intervalMs, long maxLogBytes) {
+        this.wal = wal;
+        this.snapshotFile = snapshotFile;
+        this.format = format;
+        this.source = source;
+        this.intervalMs = intervalMs;
+        this.maxLogBytes = maxLogBytes;
+    }
+
+    void start() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snapshot-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::compactIfDue, CHECK_EVERY_MS, CHECK_EVERY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void compactIfDue() {
+        try {
+            boolean logTooBig = wal.size() >= maxLogBytes;
+            boolean intervalElapsed = System.currentTimeMillis() - lastCompaction >= intervalMs
+                    && wal.lastSeq() != lastCompactedSeq;
+            if (wal.hasArchive() || logTooBig || intervalElapsed) { //archive left over means the last attempt failed
+                compact();
+            }
+        } catch (Exception e) { //never let an exception kill the scheduled task
+            System.err.println("Snapshot compaction failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void compact() throws IOException {
+        long seq = wal.lastSeq();
+        JsonObject snapshot = source.capture();
+
+        AtomicFile.write(snapshotFile, out -> format.write(snapshot, out)); //a crash leaves the old or the new snapshot
+
+        wal.deleteArchive(); //every archived record is now part of db.json
+        lastCompactedSeq = seq;
+        lastCompaction = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+//snapshot persistence mode: writers no longer rewrite db.json themselves. every change bumps a generation number
+//and the writer waits until a rewrite that started after its change has finished, so writers that arrive while a
+//rewrite is running share the next one instead of queueing up one full rewrite each
+class SnapshotPersister {
+
+    interface SnapshotWrite {
+        void write() throws IOException; //writes the whole database, must take care of its own consistency
+    }
+
+    private final SnapshotWrite snapshotWrite;
+    private final AtomicLong changedGen = new AtomicLong();
+    private long persistedGen; //guarded by this
+    private boolean writing; //guarded by this
+
+    SnapshotPersister(SnapshotWrite snapshotWrite) {
+        this.snapshotWrite = snapshotWrite;
+    }
+
+    long markChanged() {
+        return changedGen.incrementAndGet();
+    }
+
+    long lastChange() {
+        return changedGen.get();
+    }
+
+    void awaitPersisted(long gen) throws IOException {
+        long target;
+        synchronized (this) {
+            while (writing && persistedGen < gen) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for snapshot");
+                }
+            }
+            if (persistedGen >= gen) {
+                return;
+            }
+            writing = true;
+            target = changedGen.get(); //everything changed up to now is in the rewrite we are about to do
+        }
+        boolean written = false;
+        try {
+            snapshotWrite.write();
+            written = true;
+        } finally {
+            synchronized (this) {
+                writing = false;
+                if (written) {
+                    persistedGen = Math.max(persistedGen, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.util.function.BiConsumer;
+
+//how the snapshot file is laid out on disk. both formats are read one top-level entry at a time, so loading never
+//needs the whole file as one String or byte[]
+interface StorageFormat {
+
+    //hands every top-level entry to the consumer in file order
+    void read(File file, BiConsumer<String, JsonElement> entries) throws IOException;
+
+    void write(JsonObject root, OutputStream out) throws IOException;
+
+    String fileName();
+
+    //-Djsondb.format=json (default) or binary, chosen per database directory
+    static StorageFormat named(String name) {
+        return switch (name.trim().toLowerCase()) {
+            case "json" -> new JsonFormat();
+            case "binary" -> new BinaryFormat();
+            default -> throw new IllegalArgumentException("Unknown storage format: " + name);
+        };
+    }
+
+    //by file extension, for the converter
+    static StorageFormat forFile(File file) {
+        return file.getName().endsWith(".bin") ? new BinaryFormat() : new JsonFormat();
+    }
+}
+
+//converts between the formats, the extension decides (.bin is binary, anything else json):
+//  java -cp <classes>:gson.jar server.FormatConverter src/server/data/db.json src/server/data/db.bin
+class FormatConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: FormatConverter <from> <to>");
+            System.exit(1);
+        }
+        File from = new File(args[0]);
+        File to = new File(args[1]);
+        JsonObject root = new JsonObject();
+        StorageFormat.forFile(from).read(from, root::add);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(to))) {
+            StorageFormat.forFile(to).write(root, out);
+        }
+        System.out.printf("%s (%d bytes) -> %s (%d bytes), %d top-level keys%n",
+                from, from.length(), to, to.length(), root.size());
+    }
+}
@@ -0,0 +1,84 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//read/write locks striped by top-level key. a write to ["a","x"] only blocks readers and writers of keys that hash
+//to the same stripe as "a", operations on the whole database take every stripe in index order (so no deadlocks)
+class StripedLocks {
+
+    private final ReadWriteLock[] stripes;
+    private final LatencyRecorder waits; //how long lock() and lockAll() took to get every stripe
+
+    StripedLocks(int stripeCount, LatencyRecorder waits) {
+        this.waits = waits;
+        stripes = new ReadWriteLock[Math.max(1, stripeCount)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    int stripeOf(String topKey) {
+        int h = topKey.hashCode();
+        h ^= (h >>> 16); //spread the high bits, like HashMap does
+        return Math.floorMod(h, stripes.length);
+    }
+
+    ReadWriteLock forKey(String topKey) {
+        return stripes[stripeOf(topKey)];
+    }
+
+    ReadWriteLock stripe(int index) {
+        return stripes[index];
+    }
+
+    int size() {
+        return stripes.length;
+    }
+
+    //sorted, de-duplicated stripe indexes for a set of top-level keys. null stands for the whole database (an empty
+    //key path) and gives every stripe. always locking in ascending order is what keeps multi-key writers deadlock free
+    int[] stripesFor(Collection<String> topKeys) {
+        if (topKeys.contains(null)) {
+            int[] all = new int[stripes.length];
+            Arrays.setAll(all, i -> i);
+            return all;
+        }
+        return topKeys.stream().mapToInt(this::stripeOf).distinct().sorted().toArray();
+    }
+
+    int[] stripesFor(String topKey) {
+        return stripesFor(Collections.singletonList(topKey));
+    }
+
+    void lock(int[] indexes, boolean write) {
+        long start = ServerMetrics.sample();
+        for (int i : indexes) {
+            (write ? stripes[i].writeLock() : stripes[i].readLock()).lock();
+        }
+        waits.since(start);
+    }
+
+    void unlock(int[] indexes, boolean write) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            (write ? stripes[indexes[i]].writeLock() : stripes[indexes[i]].readLock()).unlock();
+        }
+    }
+
+    void lockAll(boolean write) {
+        long start = ServerMetrics.now();
+        for (ReadWriteLock stripe : stripes) {
+            (write ? stripe.writeLock() : stripe.readLock()).lock();
+        }
+        waits.since(start);
+    }
+
+    void unlockAll(boolean write) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            (write ? stripes[i].writeLock() : stripes[i].readLock()).unlock();
+        }
+    }
+}
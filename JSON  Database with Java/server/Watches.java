@@ -0,0 +1,287 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//change data capture: a session can watch a key path and is pushed a notification whenever a write touches that path,
+//an ancestor of it (which replaces it) or a descendant (which changes its value):
+//  {"watch":<id of the watch request>,"key":<path>,"value":<value>,"seq":<n>}  or  ...,"deleted":true,"seq":<n>}
+//seq counts the writes since the server started. the first notification comes right after the watch, with the value
+//the path has at that moment
+//
+//a write only marks the watches it touches as pending, it never queues values. one dispatcher thread reads the current
+//value of every pending watch and pushes it while the subscriber's connection keeps up (Sink.ready), so a slow
+//subscriber gets one notification with the latest value instead of every version in between, and what we hold for it
+//is bounded by its number of watches however fast the writes come. the value is read when the notification is sent,
+//so it is at least as new as its seq. like replication, a notification can go out before the write is durable
+//
+//paths are the key names joined with \0 like in PathIndex and ResponseCache
+class Watches {
+
+    //how notifications get onto one connection, implemented by each front end
+    interface Sink {
+        boolean ready(); //false while earlier notifications are still on their way out
+        void push(SendResponse notification) throws IOException; //must not block
+    }
+
+    interface Reader {
+        JsonElement value(JsonArray path); //null when the path does not exist
+    }
+
+    private static final char SEPARATOR = '\0';
+    private static final int PER_ROUND = 64; //notifications per subscriber before the next one gets its turn
+
+    private final Reader reader;
+    private final AtomicLong seq = new AtomicLong();
+    private volatile int count; //number of watches, writes skip the lock while nobody is watching
+    //all guarded by this. sorted finds the watches below a path, dirty the subscribers with pending notifications
+    private final TreeMap<String, List<Watch>> sorted = new TreeMap<>();
+    private final LinkedHashSet<Subscriber> dirty = new LinkedHashSet<>();
+    private int subscribers;
+    private long sent;
+    private long coalesced;
+    private Thread dispatcher;
+
+    //the watches of one connection
+    class Subscriber {
+        private final Sink sink;
+        private final LinkedHashMap<Watch, Long> pending = new LinkedHashMap<>(); //guarded by Watches.this
+        private final List<Watch> watches = new ArrayList<>(); //guarded by Watches.this
+        private boolean closed; //guarded by Watches.this
+        private int held; //guarded by Watches.this, watches whose OK has not been sent yet
+
+        private Subscriber(Sink sink) {
+            this.sink = sink;
+        }
+
+        //the sink calls this when it has sent what it was given and can take more
+        void ready() {
+            synchronized (Watches.this) {
+                Watches.this.notifyAll();
+            }
+        }
+
+        //the front end has queued the OK of a watch, its notifications may follow it now
+        void acknowledged() {
+            synchronized (Watches.this) {
+                held--;
+                Watches.this.notifyAll();
+            }
+        }
+    }
+
+    private static class Watch {
+        final Subscriber subscriber;
+        final JsonElement id;
+        final JsonElement key; //as the client sent it, echoed in every notification
+        final JsonArray path;
+        final String pathKey;
+
+        Watch(Subscriber subscriber, JsonElement id, JsonElement key, JsonArray path) {
+            this.subscriber = subscriber;
+            this.id = id;
+            this.key = key;
+            this.path = path;
+            this.pathKey = PathIndex.path(path);
+        }
+    }
+
+    Watches(Reader reader) {
+        this.reader = reader;
+    }
+
+    synchronized Subscriber subscribe(Sink sink) {
+        subscribers++;
+        return new Subscriber(sink);
+    }
+
+    //path must not be empty. nothing is sent to the subscriber until the front end calls acknowledged()
+    synchronized void watch(Subscriber subscriber, JsonElement id, JsonElement key, JsonArray path) {
+        subscriber.held++;
+        if (subscriber.closed) {
+            return;
+        }
+        Watch watch = new Watch(subscriber, id, key, path);
+        sorted.computeIfAbsent(watch.pathKey, p -> new ArrayList<>()).add(watch);
+        subscriber.watches.add(watch);
+        count++;
+        mark(watch, seq.get()); //the current value right away
+        if (dispatcher == null) {
+            dispatcher = new Thread(this::dispatch, "watch-dispatcher");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+    }
+
+    //removes the subscriber's watches on path, returns how many there were
+    synchronized int unwatch(Subscriber subscriber, JsonArray path) {
+        String pathKey = PathIndex.path(path);
+        List<Watch> removed = new ArrayList<>();
+        for (Watch watch : subscriber.watches) {
+            if (watch.pathKey.equals(pathKey)) {
+                removed.add(watch);
+            }
+        }
+        removed.forEach(this::remove);
+        return removed.size();
+    }
+
+    //the connection is gone
+    synchronized void close(Subscriber subscriber) {
+        if (subscriber.closed) {
+            return;
+        }
+        subscriber.closed = true;
+        new ArrayList<>(subscriber.watches).forEach(this::remove);
+        dirty.remove(subscriber);
+        subscribers--;
+    }
+
+    private void remove(Watch watch) {
+        List<Watch> atPath = sorted.get(watch.pathKey);
+        atPath.remove(watch);
+        if (atPath.isEmpty()) {
+            sorted.remove(watch.pathKey);
+        }
+        watch.subscriber.watches.remove(watch);
+        watch.subscriber.pending.remove(watch);
+        if (watch.subscriber.pending.isEmpty()) {
+            dirty.remove(watch.subscriber);
+        }
+        count--;
+    }
+
+    //called by every write after it changed the database, with its stripes still locked
+    void changed(JsonElement key) {
+        long writeSeq = seq.incrementAndGet();
+        if (count == 0) {
+            return;
+        }
+        synchronized (this) {
+            touch(pathOf(key), writeSeq);
+        }
+    }
+
+    //a multi-key write is one write, all its keys get the same seq
+    void changed(List<LogRecord> effects) {
+        long writeSeq = seq.incrementAndGet();
+        if (count == 0) {
+            return;
+        }
+        synchronized (this) {
+            effects.forEach(effect -> touch(pathOf(effect.key), writeSeq));
+        }
+    }
+
+    private void touch(String path, long writeSeq) {
+        //ancestors, including the top-level key, and the path itself
+        for (int i = path.indexOf(SEPARATOR); i >= 0; i = path.indexOf(SEPARATOR, i + 1)) {
+            markAll(sorted.get(path.substring(0, i)), writeSeq);
+        }
+        markAll(sorted.get(path), writeSeq);
+        //descendants: everything that starts with path + \0
+        sorted.subMap(path + SEPARATOR, path + (char) (SEPARATOR + 1)).values().forEach(below -> markAll(below, writeSeq));
+    }
+
+    private void markAll(List<Watch> watches, long writeSeq) {
+        if (watches != null) {
+            watches.forEach(watch -> mark(watch, writeSeq));
+        }
+    }
+
+    private void mark(Watch watch, long writeSeq) {
+        Subscriber subscriber = watch.subscriber;
+        Long previous = subscriber.pending.put(watch, writeSeq); //keeps its place in line if it was already there
+        if (previous != null) {
+            coalesced++; //the notification that is already pending carries this write too
+            if (previous > writeSeq) {
+                subscriber.pending.put(watch, previous); //seqs are taken before the lock, a later one got here first
+            }
+        }
+        if (dirty.add(subscriber)) {
+            notifyAll();
+        }
+    }
+
+    private static String pathOf(JsonElement key) {
+        return key.isJsonPrimitive() ? key.getAsString() : PathIndex.path(key.getAsJsonArray());
+    }
+
+    private void dispatch() {
+        while (true) {
+            Map<Watch, Long> round;
+            synchronized (this) {
+                try {
+                    while ((round = takeReady()).isEmpty()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            for (Map.Entry<Watch, Long> entry : round.entrySet()) {
+                Watch watch = entry.getKey();
+                JsonElement value = reader.value(watch.path); //after taking it, a write from now on marks it again
+                SendResponse notification = new SendResponse(null, value, null)
+                        .withNotification(watch.id, watch.key, value == null)
+                        .withSeq(entry.getValue());
+                try {
+                    watch.subscriber.sink.push(notification);
+                    synchronized (this) {
+                        sent++;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    close(watch.subscriber);
+                }
+            }
+        }
+    }
+
+    //up to PER_ROUND pending notifications of every subscriber that can take them, removed from pending
+    private Map<Watch, Long> takeReady() {
+        Map<Watch, Long> round = new LinkedHashMap<>();
+        Iterator<Subscriber> subscribers = dirty.iterator();
+        while (subscribers.hasNext()) {
+            Subscriber subscriber = subscribers.next();
+            if (subscriber.held > 0 || !subscriber.sink.ready()) {
+                continue; //backpressure, its writes keep coalescing in pending meanwhile
+            }
+            Iterator<Map.Entry<Watch, Long>> pending = subscriber.pending.entrySet().iterator();
+            for (int n = 0; n < PER_ROUND && pending.hasNext(); n++) {
+                Map.Entry<Watch, Long> entry = pending.next();
+                round.put(entry.getKey(), entry.getValue());
+                pending.remove();
+            }
+            if (subscriber.pending.isEmpty()) {
+                subscribers.remove();
+            }
+        }
+        return round;
+    }
+
+    synchronized JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        int pending = 0;
+        for (Subscriber subscriber : dirty) {
+            pending += subscriber.pending.size();
+        }
+        json.addProperty("subscribers", subscribers);
+        json.addProperty("watches", count);
+        json.addProperty("pending", pending);
+        json.addProperty("sent", sent);
+        json.addProperty("coalesced", coalesced);
+        json.addProperty("seq", seq.get());
+        return json;
+    }
+}
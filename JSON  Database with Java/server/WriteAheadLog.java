@@ -0,0 +1,247 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+
+//append-only log of mutations. every set/delete is written as one compact json line instead of rewriting
+//the whole db.json, and at startup the log is replayed over the last snapshot to rebuild db in memory
+class WriteAheadLog {
+
+    enum FsyncPolicy {
+        ALWAYS,   //force to disk inside every append
+        GROUP,    //writers wait for a shared force, one fsync covers everyone who appended before it
+        INTERVAL; //background thread forces every few ms, a crash can lose the last interval
+
+        static FsyncPolicy from(String value) {
+            return FsyncPolicy.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private static final Gson gson = new Gson();
+
+    private final File file;
+    private final File archive; //records already handed to a snapshot that is still being written
+    private final FsyncPolicy policy;
+    private final long intervalMs;
+    private final LatencyRecorder fsyncs;
+    private volatile FileChannel channel;
+
+    private volatile long appendedSeq;
+    private long syncedSeq; //guarded by syncLock
+    private boolean syncing; //guarded by syncLock
+    private final Object syncLock = new Object();
+
+    WriteAheadLog(File file, FsyncPolicy policy, long intervalMs, LatencyRecorder fsyncs) {
+        this.file = file;
+        this.archive = new File(file.getPath() + ".old");
+        this.policy = policy;
+        this.intervalMs = intervalMs;
+        this.fsyncs = fsyncs;
+    }
+
+    //reads every complete record and hands it to the applier, the archive first because it is older.
+    //a torn last line (crash in the middle of an append) is cut off so that new records are not appended behind garbage
+    long replay(Consumer<LogRecord> applier) throws IOException {
+        replay(archive, applier);
+        replay(file, applier);
+        return appendedSeq;
+    }
+
+    private void replay(File file, Consumer<LogRecord> applier) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long validLength = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                LogRecord record;
+                try {
+                    record = gson.fromJson(line.toString(StandardCharsets.UTF_8), LogRecord.class);
+                } catch (JsonParseException e) {
+                    break; //corrupt record, everything after it is unusable
+                }
+                if (record == null || record.op == null) {
+                    break;
+                }
+                applier.accept(record);
+                appendedSeq = record.seq;
+                validLength += line.size() + 1;
+                line.reset();
+            }
+        }
+        if (validLength < file.length()) {
+            System.err.println("Write-ahead log has a torn tail, truncating " + file + " to " + validLength + " bytes");
+            try (FileChannel truncate = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                truncate.truncate(validLength);
+            }
+        }
+    }
+
+    void open() throws IOException {
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        synchronized (syncLock) {
+            syncedSeq = appendedSeq; //everything replayed is already on disk
+        }
+        if (policy == FsyncPolicy.INTERVAL) {
+            Thread flusher = new Thread(this::flushPeriodically, "wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    //synchronized because writers of different lock stripes append concurrently
+    synchronized long append(String op, JsonElement key, JsonElement value, Long expiresAt) throws IOException {
+        LogRecord record = new LogRecord(appendedSeq + 1, op, key, value);
+        record.expiresAt = expiresAt;
+        return append(record);
+    }
+
+    //several mutations that have to be replayed together, written as one line so a torn tail drops all of them
+    synchronized long appendBatch(List<LogRecord> ops) throws IOException {
+        LogRecord batch = new LogRecord(appendedSeq + 1, "batch", null, null);
+        batch.ops = ops;
+        return append(batch);
+    }
+
+    private long append(LogRecord record) throws IOException {
+        long seq = record.seq;
+        byte[] bytes = (gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (policy == FsyncPolicy.ALWAYS) {
+            force(channel);
+        }
+        appendedSeq = seq;
+        return seq;
+    }
+
+    //blocks until the record with this sequence number is on disk. with GROUP the first waiter forces the file and
+    //everybody that appended before that force is released by the same fsync
+    void awaitDurable(long seq) throws IOException {
+        if (policy != FsyncPolicy.GROUP) {
+            return; //ALWAYS already forced inside append, INTERVAL does not wait
+        }
+        long target;
+        synchronized (syncLock) {
+            while (syncing && syncedSeq < seq) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for log sync");
+                }
+            }
+            if (syncedSeq >= seq) {
+                return;
+            }
+            syncing = true;
+            target = appendedSeq;
+        }
+        boolean forced = false;
+        try {
+            force(channel);
+            forced = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (forced) {
+                    syncedSeq = Math.max(syncedSeq, target);
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    private void force(FileChannel channel) throws IOException {
+        long start = ServerMetrics.now();
+        channel.force(false);
+        fsyncs.since(start);
+    }
+
+    private void flushPeriodically() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMs);
+                force(channel);
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedChannelException e) {
+                //rotated underneath us, rotate() already forced the old file
+            } catch (IOException e) {
+                System.err.println("Write-ahead log flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    //moves the current records into the archive and starts an empty log. must be called while no writer can append,
+    //the caller then writes a snapshot that contains everything in the archive and calls deleteArchive()
+    synchronized void rotate() throws IOException {
+        synchronized (syncLock) {
+            while (syncing) { //let a group fsync on the old channel finish first
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rotating log");
+                }
+            }
+            force(channel);
+            channel.close();
+            if (archive.exists()) {
+                //an earlier snapshot never finished, keep its records in front of ours
+                try (FileChannel out = FileChannel.open(archive.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                     FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < in.size()) {
+                        position += in.transferTo(position, in.size() - position, out);
+                    }
+                    out.force(false);
+                }
+                Files.delete(file.toPath());
+            } else {
+                Files.move(file.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            syncedSeq = appendedSeq;
+            syncLock.notifyAll();
+        }
+    }
+
+    void deleteArchive() throws IOException {
+        Files.deleteIfExists(archive.toPath());
+    }
+
+    boolean hasArchive() {
+        return archive.exists();
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    long lastSeq() {
+        return appendedSeq;
+    }
+}